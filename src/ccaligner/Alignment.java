@@ -130,6 +130,17 @@ public class Alignment {
 	 */
 	private int gaps;
 
+	/**
+	 * Whether X-drop pruning may have changed the alignment
+	 */
+	private boolean pruned;
+
+	/**
+	 * Whether the coiled-coil correction was skipped because neither
+	 * sequence has a residue in a coil
+	 */
+	private boolean plain;
+
 	/**
 	 * Constructor for Alignment
 	 */
@@ -386,6 +397,39 @@ public class Alignment {
 		this.similarity = similarity;
 	}
 
+	/**
+	 * @return Returns whether X-drop pruning may have changed the
+	 *         alignment: it scores lower or ends in another cell than the
+	 *         best alignment of the sequences.
+	 */
+	public boolean isPruned() {
+		return pruned;
+	}
+
+	/**
+	 * @param pruned
+	 *            Whether X-drop pruning may have changed the alignment.
+	 */
+	public void setPruned(boolean pruned) {
+		this.pruned = pruned;
+	}
+
+	/**
+	 * @return Returns whether the coiled-coil correction was skipped
+	 *         because neither sequence has a residue in a coil.
+	 */
+	public boolean isPlain() {
+		return plain;
+	}
+
+	/**
+	 * @param plain
+	 *            Whether the coiled-coil correction was skipped.
+	 */
+	public void setPlain(boolean plain) {
+		this.plain = plain;
+	}
+
 	/**
 	 * Returns a summary for alignment
 	 * 
@@ -6,8 +6,6 @@ import ccaligner.util.Commons;
 
 public class AlignmentResult implements Comparable<AlignmentResult> {
 
-	private static final DecimalFormat f1 = new DecimalFormat("0.00");
-
 	private final String p1;
 	private final String p2;
 	private final float bitscore;
@@ -27,6 +25,18 @@ public class AlignmentResult implements Comparable<AlignmentResult> {
 		this.message = message;
 	}
 	
+	/*
+	 * Result of a score-only pass: only the score is known, there are no coordinates.
+	 */
+	public AlignmentResult(String p1, String p2, float bitscore) {
+		this.p1 = p1;
+		this.p2 = p2;
+		this.bitscore = bitscore;
+		this.identity = this.start1 = this.end1 = this.start2 = this.end2 = 0;
+		this.method = "CC";
+		this.message = null;
+	}
+	
 	public AlignmentResult(String p1, String p2, float bitscore, float identity, int start1,
 			int end1, int start2, int end2, String method) throws Exception {
 		this.p1 = Commons.extractName(p1);
@@ -51,7 +61,7 @@ public class AlignmentResult implements Comparable<AlignmentResult> {
 		this.end1 = alignment.getStart1()+alignment.getSequence1().length;
 		this.start2 = alignment.getStart2();
 		this.end2 = alignment.getStart2()+alignment.getSequence2().length;
-		this.method = "CC";
+		this.method = (alignment.isPlain() ? "SW-no-cc" : "CC") + (alignment.isPruned() ? "-xdrop" : "");
 		this.message = null;
 	}
 	
@@ -72,9 +82,10 @@ public class AlignmentResult implements Comparable<AlignmentResult> {
 		{
 			this.bitscore = Float.valueOf(fields[2]);
 			this.identity = Float.valueOf(fields[3]);
-			this.start1 = Integer.valueOf(fields[4]);
+			// starts are printed from 1, see toString()
+			this.start1 = Integer.valueOf(fields[4]) - 1;
 			this.end1 = Integer.valueOf(fields[5]);
-			this.start2 = Integer.valueOf(fields[6]);
+			this.start2 = Integer.valueOf(fields[6]) - 1;
 			this.end2 = Integer.valueOf(fields[7]);
 			this.method = (fields.length > 8) ? fields[8] : "SW";
 			this.message = null;
@@ -96,6 +107,8 @@ public class AlignmentResult implements Comparable<AlignmentResult> {
 	{
 		if (message != null) return p1 + "\t"+ p2 +"\t" + message;
 		
+		// a DecimalFormat cannot be shared by the threads of a search
+		DecimalFormat f1 = new DecimalFormat("0.00");
 		return p1 + "\t"+ p2 +"\t"+f1.format(bitscore)+"\t"+f1.format(identity)+"\t"
 				+ (1+start1) + "\t" + end1 + "\t" + (1+start2) + "\t" + end2 + "\t" + method;
 	}
@@ -110,6 +123,11 @@ public class AlignmentResult implements Comparable<AlignmentResult> {
 		method = m;
 	}
 	
+	public String getMethod()
+	{
+		return method;
+	}
+	
 	
 	public float getBitscore()
 	{
@@ -130,4 +148,27 @@ public class AlignmentResult implements Comparable<AlignmentResult> {
 	{
 		return p2;
 	}
+
+	/*
+	 * Coordinates of the alignment: starts count from 0 and ends are exclusive.
+	 */
+	public int getStart1()
+	{
+		return start1;
+	}
+
+	public int getEnd1()
+	{
+		return end1;
+	}
+
+	public int getStart2()
+	{
+		return start2;
+	}
+
+	public int getEnd2()
+	{
+		return end2;
+	}
 }
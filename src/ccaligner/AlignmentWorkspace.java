@@ -0,0 +1,379 @@
+/*
+ * $Id: AlignmentWorkspace.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner;
+
+import java.util.Arrays;
+
+/**
+ * Working arrays of the alignments run on one thread, reused from one pair
+ * of sequences to the next instead of being allocated for each pair. Each
+ * array is held in a numbered slot, and grows geometrically when a longer
+ * one is needed, so after the longest sequences have been seen no more
+ * arrays are allocated.
+ * <p>
+ * The arrays are longer than requested, and hold whatever was left in
+ * them, so callers initialize the part they use. An array is only valid
+ * until its slot is requested again on the same thread: the slots of one
+ * type are numbered by their use, and two arrays that are in use at the
+ * same time must be in different slots. Arrays longer than
+ * {@link #MAX_KEPT} are not kept, so a single huge alignment does not hold
+ * on to its memory, and {@link #trim()} drops the arrays of a thread that
+ * keeps more than {@link #MAX_RETAINED} bytes of them.
+ */
+final class AlignmentWorkspace {
+
+	/**
+	 * Float slot: scores of the previous row or column
+	 */
+	static final int SCORES = 0;
+
+	/**
+	 * Float slot: scores of the current row or column
+	 */
+	static final int NEXT_SCORES = 1;
+
+	/**
+	 * Float slot: vertical gap scores
+	 */
+	static final int VERTICAL_GAPS = 2;
+
+	/**
+	 * Float slot: horizontal gap scores
+	 */
+	static final int HORIZONTAL_GAPS = 3;
+
+	/**
+	 * Float slot: similarity scores of a column of a batch
+	 */
+	static final int SIMILARITIES = 4;
+
+	/**
+	 * Float slot: highest scores of a column of a batch
+	 */
+	static final int MAXIMA = 5;
+
+	/**
+	 * Float slot: scores of the rows of a batch
+	 */
+	static final int PROFILES = 6;
+
+	/**
+	 * Float slot: scores of the classes of a {@link ScoreProfile}
+	 */
+	static final int TABLES = 7;
+
+	/**
+	 * Float slot: scores of the column before a block
+	 */
+	static final int LEFT_SCORES = 8;
+
+	/**
+	 * Float slot: horizontal gap scores of the column before a block
+	 */
+	static final int LEFT_GAPS = 9;
+
+	/**
+	 * Float slot: probabilities of all residues of a sequence
+	 */
+	static final int PROBABILITIES = 10;
+
+	/**
+	 * Float slot: probabilities of the coiled residues of a sequence
+	 */
+	static final int COILED_PROBABILITIES = 11;
+
+	/**
+	 * Int slot: classes of residues in a {@link ScoreProfile} by key
+	 */
+	static final int CLASSES = 0;
+
+	/**
+	 * Int slot: index of a residue of each class
+	 */
+	static final int RESIDUES = 1;
+
+	/**
+	 * Int slot: class of the residue of each lane of a batch
+	 */
+	static final int COLUMNS = 2;
+
+	/**
+	 * Int slot: class of the residue of each column of a striped profile
+	 */
+	static final int STRIPED_COLUMNS = 3;
+
+	/**
+	 * Long slot: keys of the classes in a {@link ScoreProfile}
+	 */
+	static final int KEYS = 0;
+
+	/**
+	 * Byte slot: directions of the current row
+	 */
+	static final int POINTERS = 0;
+
+	/**
+	 * Byte slot: whether the scores of each class of a
+	 * {@link ScoreProfile} are computed
+	 */
+	static final int COMPUTED = 1;
+
+	/**
+	 * Byte slot: whether the striped profile of each class is built
+	 */
+	static final int BUILT = 2;
+
+	/**
+	 * Byte slot: directions of a row packed for a {@link TracebackStore}
+	 */
+	static final int PACKED = 3;
+
+	/**
+	 * Char slots: the reversed aligned sequences, markup and coils
+	 */
+	static final int REVERSED1 = 0, REVERSED2 = 1, MARKUP = 2, COILS1 = 3, COILS2 = 4;
+
+	/**
+	 * Largest number of elements of an array that is kept for reuse
+	 */
+	static final int MAX_KEPT = 1 << 22;
+
+	/**
+	 * Largest number of bytes of all arrays that a thread keeps for reuse
+	 * after {@link #trim()}
+	 */
+	static final long MAX_RETAINED = 32L << 20;
+
+	private static final ThreadLocal<AlignmentWorkspace> workspaces = new ThreadLocal<AlignmentWorkspace>() {
+		@Override
+		protected AlignmentWorkspace initialValue() {
+			return new AlignmentWorkspace();
+		}
+	};
+
+	private final float[][] floats = new float[12][];
+	private final int[][] ints = new int[4][];
+	private final long[][] longs = new long[1][];
+	private final byte[][] bytes = new byte[4][];
+	private final char[][] chars = new char[5][];
+	private float[][] profiles = new float[0][];
+	private boolean parallel = true;
+
+	/**
+	 * Number of bytes of the arrays kept
+	 */
+	private long retained;
+
+	private AlignmentWorkspace() {
+	}
+
+	/**
+	 * @return the workspace of the current thread
+	 */
+	static AlignmentWorkspace get() {
+		return workspaces.get();
+	}
+
+	/**
+	 * @return whether big alignments of the thread may be filled in
+	 *         parallel on the common pool
+	 */
+	boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * @param parallel
+	 *            whether big alignments of the thread may be filled in
+	 *            parallel on the common pool
+	 */
+	void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Returns the float array of a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param length
+	 *            minimum length of the array
+	 */
+	float[] getFloats(int slot, int length) {
+		float[] a = floats[slot];
+		if (a == null || a.length < length) {
+			final int kept = a == null ? 0 : a.length;
+			a = new float[capacity(kept, length)];
+			if (keep(kept, a.length, Float.BYTES)) {
+				floats[slot] = a;
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the int array of a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param length
+	 *            minimum length of the array
+	 */
+	int[] getInts(int slot, int length) {
+		int[] a = ints[slot];
+		if (a == null || a.length < length) {
+			final int kept = a == null ? 0 : a.length;
+			a = new int[capacity(kept, length)];
+			if (keep(kept, a.length, Integer.BYTES)) {
+				ints[slot] = a;
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the long array of a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param length
+	 *            minimum length of the array
+	 */
+	long[] getLongs(int slot, int length) {
+		long[] a = longs[slot];
+		if (a == null || a.length < length) {
+			final int kept = a == null ? 0 : a.length;
+			a = new long[capacity(kept, length)];
+			if (keep(kept, a.length, Long.BYTES)) {
+				longs[slot] = a;
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the byte array of a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param length
+	 *            minimum length of the array
+	 */
+	byte[] getBytes(int slot, int length) {
+		byte[] a = bytes[slot];
+		if (a == null || a.length < length) {
+			final int kept = a == null ? 0 : a.length;
+			a = new byte[capacity(kept, length)];
+			if (keep(kept, a.length, 1)) {
+				bytes[slot] = a;
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the char array of a slot.
+	 *
+	 * @param slot
+	 *            the slot
+	 * @param length
+	 *            minimum length of the array
+	 */
+	char[] getChars(int slot, int length) {
+		char[] a = chars[slot];
+		if (a == null || a.length < length) {
+			final int kept = a == null ? 0 : a.length;
+			a = new char[capacity(kept, length)];
+			if (keep(kept, a.length, Character.BYTES)) {
+				chars[slot] = a;
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the striped profile of a class of residues. The profiles of
+	 * all classes are in use at the same time, each in its own array, so
+	 * that the loops reading them see the profile from its start.
+	 *
+	 * @param c
+	 *            the class
+	 * @param length
+	 *            minimum length of the array
+	 */
+	float[] getProfile(int c, int length) {
+		if (c >= profiles.length) {
+			profiles = Arrays.copyOf(profiles, capacity(profiles.length, c + 1));
+		}
+		float[] a = profiles[c];
+		if (a == null || a.length < length) {
+			final int kept = a == null ? 0 : a.length;
+			a = new float[capacity(kept, length)];
+			if (keep(kept, a.length, Float.BYTES)) {
+				profiles[c] = a;
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Drops all arrays if they are more than {@link #MAX_RETAINED} bytes,
+	 * so a thread does not hold on to the memory of its biggest alignments
+	 * between them. No array of the workspace may be in use.
+	 */
+	void trim() {
+		if (retained > MAX_RETAINED) {
+			Arrays.fill(floats, null);
+			Arrays.fill(ints, null);
+			Arrays.fill(longs, null);
+			Arrays.fill(bytes, null);
+			Arrays.fill(chars, null);
+			profiles = new float[0][];
+			retained = 0;
+		}
+	}
+
+	/**
+	 * Returns whether to keep an array in place of a shorter one: if it is
+	 * not longer than {@link #MAX_KEPT}. If not, the shorter one is kept.
+	 *
+	 * @param kept
+	 *            length of the array kept, or 0 if none
+	 * @param length
+	 *            length of the new array
+	 * @param bytes
+	 *            number of bytes of an element
+	 */
+	private boolean keep(int kept, int length, int bytes) {
+		if (length > MAX_KEPT) {
+			return false;
+		}
+		retained += (long) (length - kept) * bytes;
+		return true;
+	}
+
+	/**
+	 * Returns the length of an array replacing one that is too short: half
+	 * as long again, but not longer than needed beyond {@link #MAX_KEPT}.
+	 */
+	private static int capacity(int current, int length) {
+		final long grown = Math.min(current + (long) (current >> 1), MAX_KEPT);
+		return (int) Math.max(length, grown);
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * $Id: BatchScan.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner;
+
+import java.util.Arrays;
+
+/**
+ * Score-only Smith-Waterman-Gotoh pass of one query against several target
+ * sequences at once, in the inter-sequence layout of Rognes (BMC
+ * Bioinformatics 12:221, 2011). Each of up to {@link #LANES} lanes holds a
+ * target under one of several scoring schemes, and the matrices are
+ * computed column by column of the targets. A lane stops at the end of its
+ * target, and the rows shrink once few lanes are left.
+ * Row i of all lanes is stored together, so the loop down a column only
+ * depends on the values a row before and is compiled to
+ * SIMD instructions, whatever the lengths of the sequences. This suits
+ * short sequences, where the striped pass of {@link StripedScan} has few
+ * columns per segment.
+ * <p>
+ * The scores and end cells are the same as those of the pairwise pass: the
+ * best score of each target, at the first cell in row-major order.
+ */
+final class BatchScan {
+
+	/**
+	 * Largest number of lanes, i.e. of targets scored at once. This is two
+	 * 512-bit registers of floats, so two rows are in flight down a column.
+	 */
+	static final int LANES = 32;
+
+	/**
+	 * Fewest lanes worth a batch. With fewer lanes the column loop is
+	 * shorter than the striped pass of {@link StripedScan} for each target.
+	 */
+	static final int MIN_LANES = 8;
+
+	/**
+	 * Number of lanes of the shorter rows, a 512-bit register of floats
+	 */
+	private static final int STEP = 16;
+
+	private BatchScan() {
+	}
+
+	/**
+	 * Computes the score of the best local alignment of the query with the
+	 * target of each lane and the cell where it ends.
+	 *
+	 * @param schemes
+	 *            similarity scores of the query, the rows, against the
+	 *            concatenated targets under each scheme, with the same
+	 *            classes of residues
+	 * @param lanes
+	 *            scheme of each lane
+	 * @param offsets
+	 *            index of the first residue of the target of each lane in
+	 *            the concatenated targets
+	 * @param lengths
+	 *            length of the target of each lane
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return The cell where the best local alignment ends, for each lane.
+	 */
+	static Cell[] scan(ScoreProfile[] schemes, int[] lanes, int[] offsets, int[] lengths, float o, float e) {
+		final ScoreProfile scores = schemes[0];
+		final int targets = offsets.length;
+		final int m = scores.rows.length;
+		final int classes = scores.getRowClassCount();
+
+		// The lanes are laid out by decreasing length of their targets, so
+		// the lanes still running are the first ones and the others are
+		// dropped as the columns go past the end of their targets.
+		final int[] order = new int[targets];
+		for (int k = 0; k < targets; k++) {
+			int x = k;
+			for (; x > 0 && lengths[order[x - 1]] < lengths[k]; x--) {
+				order[x] = order[x - 1];
+			}
+			order[x] = k;
+		}
+
+		// the tables of the classes are looked up once for the batch: the
+		// scores of class c against the residues of the target in lane x
+		// are at tables[x], from index[c * targets + x] on
+		final float[][] tables = new float[targets][];
+		final int[] index = new int[classes * targets];
+		final int[] table = new int[schemes.length];
+		for (int x = 0; x < targets; x++) {
+			tables[x] = schemes[lanes[order[x]]].getScores();
+		}
+		for (int c = 0; c < classes; c++) {
+			for (int scheme = 0; scheme < schemes.length; scheme++) {
+				table[scheme] = schemes[scheme].getTable(c);
+			}
+			for (int x = 0; x < targets; x++) {
+				index[c * targets + x] = table[lanes[order[x]]];
+			}
+		}
+
+		// Row i (from 0) of lane x is at index (i * stride + x). Up to STEP
+		// lanes the rows hold STEP lanes, and otherwise LANES. The rows are
+		// allocated for each batch rather than taken from the workspace: the
+		// compiler only vectorizes the column loop when it can tell the
+		// arrays apart, which it can for fresh local arrays.
+		int active = targets;
+		int stride = active > STEP ? LANES : STEP;
+		float[] v = new float[(m + 1) * stride]; // scores of the previous column
+		float[] vNext = new float[v.length]; // scores of the current column
+		float[] g = new float[v.length]; // vertical gap scores
+		float[] h = new float[v.length]; // horizontal gap scores
+		float[] s = new float[v.length]; // similarity scores of the column
+		float[] max = new float[v.length]; // highest scores of the column up to each row
+
+		Arrays.fill(g, Float.NEGATIVE_INFINITY);
+		Arrays.fill(h, Float.NEGATIVE_INFINITY);
+
+		// scores of each class of the query against the residues of the column
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		final float[] profile = workspace.getFloats(AlignmentWorkspace.PROFILES, classes * stride);
+		final int[] columns = workspace.getInts(AlignmentWorkspace.COLUMNS, targets);
+
+		final int[] best_row = new int[targets];
+		final int[] best_col = new int[targets];
+		final float[] best_score = new float[targets];
+
+		for (int j = 1;; j++) {
+			while (active > 0 && lengths[order[active - 1]] < j) {
+				active--;
+			}
+			if (active == 0) {
+				break;
+			}
+			if (active <= STEP && stride > STEP) {
+				// the lanes still running fit in shorter rows
+				final float[] vShort = new float[(m + 1) * STEP];
+				final float[] hShort = new float[vShort.length];
+				for (int i = 0; i <= m; i++) {
+					System.arraycopy(v, i * stride, vShort, i * STEP, STEP);
+					System.arraycopy(h, i * stride, hShort, i * STEP, STEP);
+				}
+				v = vShort;
+				h = hShort;
+				vNext = new float[v.length];
+				g = new float[v.length];
+				s = new float[v.length];
+				max = new float[v.length];
+				Arrays.fill(g, Float.NEGATIVE_INFINITY);
+				stride = STEP;
+			}
+
+			for (int x = 0; x < active; x++) {
+				columns[x] = scores.columns[offsets[order[x]] + j - 1];
+			}
+			for (int c = 0; c < classes; c++) {
+				final int row = c * stride;
+				for (int x = 0; x < active; x++) {
+					profile[row + x] = tables[x][index[c * targets + x] + columns[x]];
+				}
+				Arrays.fill(profile, row + active, row + stride, Float.NEGATIVE_INFINITY);
+			}
+			for (int i = 1; i <= m; i++) {
+				System.arraycopy(profile, scores.rows[i - 1] * stride, s, i * stride, stride);
+			}
+
+			// the distance down a column is a constant in each call
+			if (stride == LANES) {
+				column(v, vNext, g, h, s, max, LANES, o, e);
+			} else {
+				column(v, vNext, g, h, s, max, STEP, o, e);
+			}
+
+			for (int x = 0; x < active; x++) {
+				// a tie is only taken from a higher row
+				final int k = order[x];
+				final float column_max = max[m * stride + x];
+				if (column_max <= 0 || column_max < best_score[k]) {
+					continue;
+				}
+				for (int i = 1; i <= m; i++) {
+					if (vNext[i * stride + x] == column_max) {
+						if (column_max > best_score[k] || i < best_row[k]) {
+							best_row[k] = i;
+							best_col[k] = j;
+							best_score[k] = column_max;
+						}
+						break;
+					}
+				}
+			}
+
+			float[] swap = v;
+			v = vNext;
+			vNext = swap;
+		}
+		Cell[] cells = new Cell[targets];
+		for (int k = 0; k < targets; k++) {
+			cells[k] = new Cell();
+			cells[k].set(best_row[k], best_col[k], best_score[k]);
+		}
+		return cells;
+	}
+
+	/**
+	 * Computes the scores of a column.
+	 *
+	 * @param v
+	 *            scores of the previous column
+	 * @param vNext
+	 *            scores of the column
+	 * @param g
+	 *            vertical gap scores of the column
+	 * @param h
+	 *            horizontal gap scores of the previous column; on return,
+	 *            of the column
+	 * @param s
+	 *            similarity scores of the column
+	 * @param max
+	 *            on return, the highest score of the column up to each row,
+	 *            at least 0; the last row holds the highest score of each
+	 *            lane
+	 * @param stride
+	 *            length of a row
+	 */
+	private static void column(float[] v, float[] vNext, float[] g, float[] h, float[] s, float[] max,
+			int stride, float o, float e) {
+		for (int x = stride; x < v.length; x++) {
+			h[x] = Math.max(h[x] - e, v[x] - o);
+			g[x] = Math.max(g[x - stride] - e, vNext[x - stride] - o);
+			vNext[x] = Math.max(Math.max(v[x - stride] + s[x], g[x]), Math.max(h[x], 0));
+			max[x] = Math.max(max[x - stride], vNext[x]);
+		}
+	}
+}
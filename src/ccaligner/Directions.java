@@ -41,4 +41,18 @@ public abstract class Directions {
 	 * Traceback direction up
 	 */
 	public static final byte UP = 3;
+	/**
+	 * Mask of the traceback direction in a cell of the traceback matrix
+	 */
+	public static final byte DIRECTION = 3;
+	/**
+	 * Flag set if the vertical gap ending at the cell extends the vertical
+	 * gap ending at the cell above
+	 */
+	public static final byte VERTICAL_EXTENSION = 4;
+	/**
+	 * Flag set if the horizontal gap ending at the cell extends the
+	 * horizontal gap ending at the cell to the left
+	 */
+	public static final byte HORIZONTAL_EXTENSION = 8;
 }
\ No newline at end of file
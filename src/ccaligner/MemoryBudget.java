@@ -0,0 +1,122 @@
+/*
+ * $Id: MemoryBudget.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner;
+
+import java.util.ArrayDeque;
+
+/**
+ * Memory on the heap shared by the tracebacks of the alignments run at the
+ * same time, e.g. on the threads of a search. An alignment reserves the
+ * memory of its traceback before allocating it, and waits while the others
+ * hold too much, so the tracebacks never take more than the budget
+ * together. The requests are served in the order they are made, so a big
+ * one is not held back by smaller ones that keep fitting in. A request
+ * bigger than the whole budget waits until all of it is free, and then runs
+ * alone.
+ */
+public final class MemoryBudget {
+
+	/**
+	 * Memory of the budget in bytes
+	 */
+	private final long total;
+
+	/**
+	 * Memory reserved in bytes
+	 */
+	private long reserved;
+
+	/**
+	 * Most memory reserved at once in bytes
+	 */
+	private long peak;
+
+	/**
+	 * Requests waiting, in the order they were made
+	 */
+	private final ArrayDeque<Object> requests = new ArrayDeque<Object>();
+
+	/**
+	 * Creates a budget.
+	 *
+	 * @param total
+	 *            memory in bytes, positive
+	 */
+	public MemoryBudget(long total) {
+		if (total <= 0) {
+			throw new IllegalArgumentException("Invalid memory budget: " + total);
+		}
+		this.total = total;
+	}
+
+	/**
+	 * Reserves memory, waiting until the requests before are served and
+	 * enough memory is free.
+	 *
+	 * @param bytes
+	 *            memory needed in bytes; if more than the budget, all of it
+	 *            is reserved
+	 * @return the memory reserved, to be released with {@link #release(long)}
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting, and nothing is
+	 *             reserved
+	 */
+	public synchronized long reserve(long bytes) throws InterruptedException {
+		final long amount = Math.max(0, Math.min(bytes, total));
+		final Object request = new Object();
+		requests.add(request);
+		try {
+			while (requests.peek() != request || reserved + amount > total) {
+				wait();
+			}
+		} finally {
+			// served or interrupted, the requests after this one are no longer held back by it
+			requests.remove(request);
+			notifyAll();
+		}
+		reserved += amount;
+		peak = Math.max(peak, reserved);
+		return amount;
+	}
+
+	/**
+	 * Releases memory reserved by {@link #reserve(long)}.
+	 *
+	 * @param bytes
+	 *            the memory reserved
+	 */
+	public synchronized void release(long bytes) {
+		reserved -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * @return the memory of the budget in bytes
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return the most memory reserved at once in bytes
+	 */
+	public synchronized long getPeak() {
+		return peak;
+	}
+}
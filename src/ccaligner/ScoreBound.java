@@ -0,0 +1,205 @@
+/*
+ * $Id: ScoreBound.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner;
+
+import java.util.ArrayList;
+
+import ccaligner.matrix.Matrix;
+
+/**
+ * Upper bound of the score of the best local alignment of two sequences,
+ * to skip pairs that cannot reach a cutoff without aligning them. Each
+ * residue is aligned to at most one residue of the other sequence, and
+ * gaps only lower the score, so no alignment scores more than the sum over
+ * the residues of either sequence of the best similarity each could have
+ * with any residue. These sums are computed once per sequence: one against
+ * sequences without coils, where residues outside of coils are scored by
+ * the scoring matrix alone, and one against any sequence.
+ * <p>
+ * The bound allows for the rounding of the float sums of the alignment, so
+ * a pair that is skipped scores below the cutoff when it is aligned.
+ */
+public final class ScoreBound {
+
+	/**
+	 * Summed bounds of the residues of a sequence.
+	 */
+	public static final class SequenceBound {
+		/**
+		 * Number of residues
+		 */
+		private final int length;
+
+		/**
+		 * Whether any residue is in a coil
+		 */
+		private final boolean coiled;
+
+		/**
+		 * Bound against sequences without coils
+		 */
+		private final double plain;
+
+		/**
+		 * Bound against any sequence
+		 */
+		private final double any;
+
+		private SequenceBound(int length, boolean coiled, double plain, double any) {
+			this.length = length;
+			this.coiled = coiled;
+			this.plain = plain;
+			this.any = any;
+		}
+	}
+
+	/**
+	 * Number of amino acid codes, which index the matrices
+	 */
+	private static final int CODES = 128;
+
+	/**
+	 * Best score of each amino acid with the scoring matrix, in either
+	 * sequence
+	 */
+	private final float[] plain;
+
+	/**
+	 * Best score of each amino acid with any coiled-coil matrix, in either
+	 * sequence, including the best coil correction; or null without the
+	 * coiled-coil correction
+	 */
+	private final float[] coiled;
+
+	/**
+	 * Open gap penalty
+	 */
+	private final float o;
+
+	/**
+	 * Extend gap penalty
+	 */
+	private final float e;
+
+	/**
+	 * Creates the bounds of a scoring scheme.
+	 *
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix}), or null
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 */
+	public ScoreBound(ArrayList<Matrix> matrices, Matrix blosum, float o, float e, float c_match,
+			float c_mismatch) {
+		this.o = o;
+		this.e = e;
+		this.plain = getMaxima(blosum.getScores(), 0);
+
+		if (matrices == null) {
+			this.coiled = null;
+		} else {
+			// the matrix of either register, corrected by a match, a mismatch or neither
+			final float correction = Math.max(0, Math.max(c_match, -c_mismatch));
+			this.coiled = new float[CODES];
+			for (Matrix matrix : matrices) {
+				float[] maxima = getMaxima(matrix.getScores(), correction);
+				for (int a = 0; a < CODES; a++) {
+					coiled[a] = Math.max(coiled[a], maxima[a]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the best score of each amino acid in a matrix, in a row or a
+	 * column, plus a correction, and at least 0.
+	 */
+	private static float[] getMaxima(float[][] scores, float correction) {
+		float[] maxima = new float[CODES];
+		for (int a = 0; a < Math.min(CODES, scores.length); a++) {
+			for (int b = 0; b < Math.min(CODES, scores[a].length); b++) {
+				maxima[a] = Math.max(maxima[a], scores[a][b] + correction);
+				maxima[b] = Math.max(maxima[b], scores[a][b] + correction);
+			}
+		}
+		return maxima;
+	}
+
+	/**
+	 * Sums the bounds of the residues of a sequence.
+	 *
+	 * @param seq
+	 *            the sequence
+	 * @return the bounds of the sequence
+	 */
+	public SequenceBound getBound(Sequence seq) {
+		double againstPlain = 0, againstAny = 0;
+		boolean hasCoils = false;
+
+		for (int i = 0; i < seq.length(); i++) {
+			final int a = seq.aa[i];
+			if (coiled == null) {
+				againstPlain += plain[a];
+				againstAny += plain[a];
+			} else if (seq.registers[i] >= 0) {
+				hasCoils = true;
+				againstPlain += coiled[a];
+				againstAny += coiled[a];
+			} else {
+				// the matrix of the other residue's register if that is in a coil
+				againstPlain += plain[a];
+				againstAny += Math.max(plain[a], coiled[a]);
+			}
+		}
+		return new SequenceBound(seq.length(), hasCoils, againstPlain, againstAny);
+	}
+
+	/**
+	 * Returns whether the best local alignment of two sequences can score
+	 * at least the cutoff. If not, it certainly scores below.
+	 *
+	 * @param b1
+	 *            bounds of sequence #1
+	 * @param b2
+	 *            bounds of sequence #2
+	 * @param cutoff
+	 *            the cutoff
+	 * @return false if no alignment of the sequences reaches the cutoff
+	 */
+	public boolean canReach(SequenceBound b1, SequenceBound b2, float cutoff) {
+		double bound = Math.min(b2.coiled ? b1.any : b1.plain, b1.coiled ? b2.any : b2.plain);
+
+		// Each cell adds one rounding error of at most half an ulp of the
+		// largest magnitude of a score, which is at most the bound, or a
+		// gap penalty of the whole path below zero.
+		final int steps = b1.length + b2.length + 1;
+		final double magnitude = bound + o + (double) e * steps;
+		bound += steps * (double) Math.ulp((float) magnitude);
+
+		return bound >= cutoff;
+	}
+}
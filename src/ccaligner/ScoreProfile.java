@@ -0,0 +1,326 @@
+/*
+ * $Id: ScoreProfile.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner;
+
+import java.util.Arrays;
+
+/**
+ * Similarity scores of two sequences, by classes of residues. Residues of
+ * a class score the same against any residue of the other sequence: they
+ * have the same amino acid, register and possible registers, and their
+ * coiled-coil probabilities compare the same to the probabilities of the
+ * other sequence. A row of the similarity matrix is then looked up from the
+ * scores of the class of its residue against the classes of the columns,
+ * which are computed only once for each class.
+ * <p>
+ * The scores of all classes are held in one array of the
+ * {@link AlignmentWorkspace} of the thread, so a profile is only valid
+ * until the next profile is created on the same thread.
+ */
+final class ScoreProfile {
+
+	/**
+	 * Maximum number of scores kept for all classes of sequence #1
+	 */
+	private static final int MAX_CACHED = 1 << 22;
+
+	/**
+	 * Class of each residue of sequence #1
+	 */
+	final int[] rows;
+
+	/**
+	 * Class of each residue of sequence #2
+	 */
+	final int[] columns;
+
+	/**
+	 * Index of a residue of each class of sequence #1
+	 */
+	private final int[] rowResidues;
+
+	/**
+	 * Index of a residue of each class of sequence #2
+	 */
+	private final int[] columnResidues;
+
+	/**
+	 * Whether the residues of each class of sequence #1 are in a coil or
+	 * have possible registers
+	 */
+	private final boolean[] coiledRows;
+
+	/**
+	 * Aligner computing the similarity of two residues
+	 */
+	private final SmithWatermanGotoh sw;
+
+	/**
+	 * Scores of each class of sequence #1 against the classes of sequence
+	 * #2, one table after the other, or of the last class if there are too
+	 * many to keep
+	 */
+	private final float[] scores;
+
+	/**
+	 * Whether the table of each class is computed, or null if only the
+	 * last class is kept
+	 */
+	private final byte[] computed;
+
+	/**
+	 * Class of sequence #1 held in scores if they are not all kept
+	 */
+	private int current = -1;
+
+	/**
+	 * Creates the profile of two sequences.
+	 *
+	 * @param seq1
+	 *            sequence #1, the rows
+	 * @param seq2
+	 *            sequence #2, the columns
+	 * @param sw
+	 *            aligner computing the similarity of two residues
+	 * @param coils
+	 *            whether the coiled-coil correction is used; otherwise the
+	 *            residues are only classed by amino acid
+	 */
+	ScoreProfile(Sequence seq1, Sequence seq2, SmithWatermanGotoh sw, boolean coils) {
+		this.sw = sw;
+		this.rows = new int[seq1.length()];
+		this.columns = new int[seq2.length()];
+		this.rowResidues = classify(seq1, seq2, coils, rows);
+		this.columnResidues = classify(seq2, seq1, coils, columns);
+
+		this.coiledRows = new boolean[rowResidues.length];
+		for (int c = 0; coils && c < rowResidues.length; c++) {
+			coiledRows[c] = seq1.registers[rowResidues[c]] >= 0 || seq1.possible_registers[rowResidues[c]] != 0;
+		}
+
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		if ((long) rowResidues.length * columnResidues.length <= MAX_CACHED) {
+			scores = workspace.getFloats(AlignmentWorkspace.TABLES, rowResidues.length * columnResidues.length);
+			computed = workspace.getBytes(AlignmentWorkspace.COMPUTED, rowResidues.length);
+			Arrays.fill(computed, 0, rowResidues.length, (byte) 0);
+		} else {
+			scores = workspace.getFloats(AlignmentWorkspace.TABLES, columnResidues.length);
+			computed = null;
+		}
+	}
+
+	/**
+	 * Creates a profile of the same sequences and classes as another one,
+	 * for an aligner with other coiled-coil matrices. Its scores are held in
+	 * arrays of its own rather than in the workspace, so both profiles can
+	 * be used at the same time.
+	 *
+	 * @param classes
+	 *            profile whose classes are shared
+	 * @param sw
+	 *            aligner computing the similarity of two residues
+	 */
+	ScoreProfile(ScoreProfile classes, SmithWatermanGotoh sw) {
+		this.sw = sw;
+		this.rows = classes.rows;
+		this.columns = classes.columns;
+		this.rowResidues = classes.rowResidues;
+		this.columnResidues = classes.columnResidues;
+		this.coiledRows = classes.coiledRows;
+
+		if (classes.isCached()) {
+			scores = new float[rowResidues.length * columnResidues.length];
+			computed = new byte[rowResidues.length];
+		} else {
+			scores = new float[columnResidues.length];
+			computed = null;
+		}
+	}
+
+	/**
+	 * @return the number of classes of sequence #1
+	 */
+	int getRowClassCount() {
+		return rowResidues.length;
+	}
+
+	/**
+	 * @return the number of classes of sequence #2
+	 */
+	int getColumnClassCount() {
+		return columnResidues.length;
+	}
+
+	/**
+	 * Returns whether the residues of a class of sequence #1 are in a coil
+	 * or have possible registers. Other residues score as with the scoring
+	 * matrix alone against residues of sequence #2 outside of coils, so
+	 * they fall in few classes.
+	 *
+	 * @param c
+	 *            class of sequence #1
+	 */
+	boolean isCoiled(int c) {
+		return coiledRows[c];
+	}
+
+	/**
+	 * @return whether the scores of all classes are kept once computed
+	 */
+	boolean isCached() {
+		return computed != null;
+	}
+
+	/**
+	 * Returns the scores of the classes, see {@link #getTable(int)}.
+	 */
+	float[] getScores() {
+		return scores;
+	}
+
+	/**
+	 * Returns where the scores of a class of sequence #1 against the
+	 * classes of sequence #2 start in {@link #getScores()}. If the scores
+	 * are not cached, they may be overwritten by the next call.
+	 *
+	 * @param c
+	 *            class of sequence #1
+	 * @return offset of the scores, indexed by class of sequence #2
+	 */
+	int getTable(int c) {
+		if (computed != null) {
+			final int offset = c * columnResidues.length;
+			if (computed[c] == 0) {
+				sw.similarity(rowResidues[c], columnResidues, scores, offset);
+				computed[c] = 1;
+			}
+			return offset;
+		}
+		if (c != current) {
+			sw.similarity(rowResidues[c], columnResidues, scores, 0);
+			current = c;
+		}
+		return 0;
+	}
+
+	/**
+	 * Assigns the residues of a sequence to classes.
+	 *
+	 * @param seq
+	 *            the sequence
+	 * @param other
+	 *            the sequence it is aligned to
+	 * @param coils
+	 *            whether the coiled-coil correction is used
+	 * @param classes
+	 *            on return, the class of each residue
+	 * @return the index of a residue of each class
+	 */
+	private static int[] classify(Sequence seq, Sequence other, boolean coils, int[] classes) {
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+
+		// The probability of a residue is only compared to the other
+		// sequence if either residue is in a coil.
+		float[] all = null, coiled = null;
+		int allCount = 0, coiledCount = 0;
+		if (coils) {
+			all = workspace.getFloats(AlignmentWorkspace.PROBABILITIES, other.length());
+			allCount = getProbabilities(other, false, all);
+			coiled = workspace.getFloats(AlignmentWorkspace.COILED_PROBABILITIES, other.length());
+			coiledCount = getProbabilities(other, true, coiled);
+		}
+
+		// open addressing of the keys, with at most half of the slots used
+		int capacity = Integer.highestOneBit(Math.max(1, seq.length())) * 4;
+		final long[] keys = workspace.getLongs(AlignmentWorkspace.KEYS, capacity);
+		final int[] values = workspace.getInts(AlignmentWorkspace.CLASSES, capacity);
+		final int[] residues = workspace.getInts(AlignmentWorkspace.RESIDUES, seq.length());
+		Arrays.fill(values, 0, capacity, -1);
+		int count = 0;
+
+		for (int i = 0; i < seq.length(); i++) {
+			// amino acid, register, possible registers and rank of the probability
+			long key = seq.aa[i];
+			if (coils) {
+				key = key << 8 | (seq.registers[i] & 0xFF);
+				key = key << 8 | (seq.possible_registers[i] & 0xFF);
+				key = key << 32 | (seq.registers[i] >= 0 ? rank(seq.cc_probs[i], all, allCount)
+						: rank(seq.cc_probs[i], coiled, coiledCount));
+			}
+
+			int slot = hash(key) & (capacity - 1);
+			while (values[slot] >= 0 && keys[slot] != key) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			if (values[slot] < 0) {
+				keys[slot] = key;
+				values[slot] = count;
+				residues[count++] = i;
+			}
+			classes[i] = values[slot];
+		}
+		return Arrays.copyOf(residues, count);
+	}
+
+	/**
+	 * Spreads the bits of a key over the low bits of a hash code.
+	 */
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ key >>> 32);
+	}
+
+	/**
+	 * Collects the distinct coiled-coil probabilities of a sequence, sorted.
+	 *
+	 * @param seq
+	 *            the sequence
+	 * @param coiled
+	 *            only include residues that are in a coil
+	 * @param p
+	 *            on return, the probabilities
+	 * @return the number of probabilities
+	 */
+	private static int getProbabilities(Sequence seq, boolean coiled, float[] p) {
+		int count = 0;
+		for (int i = 0; i < seq.length(); i++) {
+			if (!coiled || seq.registers[i] >= 0) {
+				p[count++] = seq.cc_probs[i] + 0.0f; // no negative zero
+			}
+		}
+		Arrays.sort(p, 0, count);
+
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || p[i] != p[distinct - 1]) {
+				p[distinct++] = p[i];
+			}
+		}
+		return distinct;
+	}
+
+	/**
+	 * Returns the rank of a probability among sorted probabilities. Equal
+	 * ranks compare the same to each of them.
+	 */
+	private static int rank(float p, float[] sorted, int count) {
+		int k = Arrays.binarySearch(sorted, 0, count, p + 0.0f);
+		return k >= 0 ? 2 * k + 1 : -2 * (k + 1);
+	}
+}
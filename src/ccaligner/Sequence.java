@@ -1,19 +1,185 @@
 package ccaligner;
 
+import java.util.Arrays;
+
+/**
+ * A protein sequence with its coiled-coil prediction. The properties of the
+ * residues are held in parallel arrays, one element per residue.
+ */
 public class Sequence {
 	public final String name;
-	public final Residue[] residues;
+
+	/**
+	 * Amino acid of each residue
+	 */
+	public final byte[] aa;
+
+	/**
+	 * Heptad register of each residue, from 0 for 'a' to 6 for 'g', or -1
+	 * if the residue is not in a coil
+	 */
+	public final byte[] registers;
+
+	/**
+	 * Coiled-coil probability of each residue
+	 */
+	public final float[] cc_probs;
+
+	/**
+	 * Possible registers of each residue, as a mask with bit r set for
+	 * register r
+	 */
+	public final byte[] possible_registers;
+
 	public final float max_prob;
 
-	public Sequence(String name, Residue[] residues) {
+	/**
+	 * Whether any residue is in a coil
+	 */
+	public final boolean coiled;
+
+	/**
+	 * Number of residues in a coil
+	 */
+	public final int coiled_residues;
+
+	public Sequence(String name, byte[] aa, byte[] registers, float[] cc_probs, byte[] possible_registers) {
 		this.name = name;
-		this.residues = residues;
-		
+		this.aa = aa;
+		this.registers = registers;
+		this.cc_probs = cc_probs;
+		this.possible_registers = possible_registers;
+
 		float prob = 0;
-		for (Residue r : residues)
+		for (float p : cc_probs)
 		{
-			if (r.cc_prob > prob) prob = r.cc_prob; 
+			if (p > prob) prob = p;
 		}
 		max_prob = prob;
+
+		int inCoil = 0;
+		for (byte r : registers)
+		{
+			if (r >= 0) inCoil++;
+		}
+		coiled_residues = inCoil;
+		coiled = inCoil > 0;
+	}
+
+	/**
+	 * @return the number of residues
+	 */
+	public int length() {
+		return aa.length;
+	}
+
+	/**
+	 * Returns the residues from index from (inclusive) to index to
+	 * (exclusive).
+	 */
+	public Sequence subSequence(int from, int to) {
+		return new Sequence(name, Arrays.copyOfRange(aa, from, to), Arrays.copyOfRange(registers, from, to),
+				Arrays.copyOfRange(cc_probs, from, to), Arrays.copyOfRange(possible_registers, from, to));
+	}
+
+	/**
+	 * Returns the residues of several sequences one after the other.
+	 *
+	 * @param name
+	 *            name of the result
+	 * @param sequences
+	 *            the sequences to concatenate
+	 */
+	public static Sequence concatenate(String name, Sequence... sequences) {
+		Builder builder = new Builder();
+		for (Sequence s : sequences) {
+			builder.add(s);
+		}
+		return builder.build(name);
+	}
+
+	/**
+	 * Collects residues for a sequence.
+	 */
+	public static class Builder {
+		private byte[] aa;
+		private byte[] registers;
+		private float[] cc_probs;
+		private byte[] possible_registers;
+		private int size = 0;
+
+		public Builder() {
+			this(16);
+		}
+
+		/**
+		 * @param capacity
+		 *            expected number of residues
+		 */
+		public Builder(int capacity) {
+			aa = new byte[capacity];
+			registers = new byte[capacity];
+			cc_probs = new float[capacity];
+			possible_registers = new byte[capacity];
+		}
+
+		/**
+		 * Adds a residue.
+		 *
+		 * @param aa
+		 *            amino acid
+		 * @param register
+		 *            heptad register, or -1 if the residue is not in a coil
+		 * @param cc_prob
+		 *            coiled-coil probability
+		 * @param possible_registers
+		 *            mask of the possible registers
+		 */
+		public void add(char aa, int register, float cc_prob, int possible_registers) {
+			ensureCapacity(size + 1);
+			this.aa[size] = (byte) aa;
+			this.registers[size] = (byte) register;
+			this.cc_probs[size] = cc_prob;
+			this.possible_registers[size] = (byte) possible_registers;
+			size++;
+		}
+
+		/**
+		 * Adds all residues of a sequence.
+		 */
+		public void add(Sequence s) {
+			final int length = s.length();
+			ensureCapacity(size + length);
+			System.arraycopy(s.aa, 0, aa, size, length);
+			System.arraycopy(s.registers, 0, registers, size, length);
+			System.arraycopy(s.cc_probs, 0, cc_probs, size, length);
+			System.arraycopy(s.possible_registers, 0, possible_registers, size, length);
+			size += length;
+		}
+
+		/**
+		 * @return the number of residues added so far
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Returns the sequence of the residues added so far.
+		 */
+		public Sequence build(String name) {
+			return new Sequence(name, Arrays.copyOf(aa, size), Arrays.copyOf(registers, size),
+					Arrays.copyOf(cc_probs, size), Arrays.copyOf(possible_registers, size));
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > aa.length) {
+				int length = Math.max(capacity, 2 * aa.length + 1);
+				aa = Arrays.copyOf(aa, length);
+				registers = Arrays.copyOf(registers, length);
+				cc_probs = Arrays.copyOf(cc_probs, length);
+				possible_registers = Arrays.copyOf(possible_registers, length);
+			}
+		}
 	}
 }
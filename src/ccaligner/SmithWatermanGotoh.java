@@ -20,8 +20,18 @@ package ccaligner;
 
 import ccaligner.matrix.Matrix;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import org.biojavax.bio.seq.RichSequence;
@@ -34,18 +44,148 @@ import org.biojavax.bio.seq.RichSequence;
  */
 
 public class SmithWatermanGotoh {
+	/**
+	 * Logger
+	 */
+	private static final Logger logger = Logger
+			.getLogger(SmithWatermanGotoh.class.getName());
+
+	/**
+	 * Default memory budget for the traceback of a single alignment
+	 */
+	public static final long DEFAULT_TRACEBACK_MEMORY = Runtime.getRuntime().maxMemory() / 4;
+
+	/**
+	 * Smallest fixed-point unit of exact scores
+	 */
+	private static final float MIN_QUANTUM = 1f / 256;
+
+	/**
+	 * Minimum number of cells of a band to fill it in parallel
+	 */
+	private static final long PARALLEL_CELLS = 1L << 24;
+
+	/**
+	 * Number of rows and of columns of the blocks of the directions matrix,
+	 * even. The scores a block reads and writes stay in the cache.
+	 */
+	private static final int BLOCK_SIZE = 1024;
+
+	/**
+	 * Smallest number of rows and of columns of the tiles of the
+	 * suboptimal alignments, even
+	 */
+	private static final int TILE_SIZE = 64;
+
+	/**
+	 * Estimated cost of scoring each residue of sequence #2 besides its
+	 * cells, in cells: its classes and the profiles of its batch
+	 */
+	private static final int RESIDUE_COST2 = 64;
+
+	/**
+	 * Estimated cost of scoring each residue of sequence #1 besides its
+	 * cells, in cells
+	 */
+	private static final int RESIDUE_COST1 = 8;
+
+	/**
+	 * Sequence #1
+	 */
+	private final Sequence seq1;
+
+	/**
+	 * Sequence #2
+	 */
+	private final Sequence seq2;
+
+	/**
+	 * Scoring matrix
+	 */
+	private final float[][] blosum;
+
+	/**
+	 * Coiled-coil scoring matrices, indexed by register, or null
+	 */
+	private final float[][][] coil_scores;
+
+	/**
+	 * Open gap penalty
+	 */
+	private final float o;
+
+	/**
+	 * Extend gap penalty
+	 */
+	private final float e;
+
+	/**
+	 * Coil match reward
+	 */
+	private final float c_match;
+
+	/**
+	 * Coil mismatch penalty
+	 */
+	private final float c_mismatch;
+
+	/**
+	 * Similarity scores by classes of residues
+	 */
+	private final ScoreProfile profile;
+
 	/**
 	 * Hidden constructor
 	 */
-	private SmithWatermanGotoh() {
+	private SmithWatermanGotoh(Sequence seq1, Sequence seq2, float[][] blosum, float[][][] coil_scores,
+			float o, float e, float c_match, float c_mismatch) {
 		super();
+		this.seq1 = seq1;
+		this.seq2 = seq2;
+		this.blosum = blosum;
+		// without a residue in a coil, the correction never applies and the
+		// residues are only classed by amino acid
+		this.coil_scores = isPlain(seq1, seq2) ? null : coil_scores;
+		this.o = o;
+		this.e = e;
+		this.c_match = c_match;
+		this.c_mismatch = c_mismatch;
+		this.profile = new ScoreProfile(seq1, seq2, this, this.coil_scores != null);
 	}
 
 	/**
-	 * Logger
+	 * Hidden constructor of an aligner of the same sequences as another one
+	 * with other coiled-coil matrices, sharing its classes of residues. The
+	 * other aligner must class the residues by their coils unless neither
+	 * aligner uses them.
 	 */
-	private static final Logger logger = Logger
-			.getLogger(SmithWatermanGotoh.class.getName());
+	private SmithWatermanGotoh(SmithWatermanGotoh classes, float[][][] coil_scores) {
+		super();
+		this.seq1 = classes.seq1;
+		this.seq2 = classes.seq2;
+		this.blosum = classes.blosum;
+		this.coil_scores = isPlain(seq1, seq2) ? null : coil_scores;
+		this.o = classes.o;
+		this.e = classes.e;
+		this.c_match = classes.c_match;
+		this.c_mismatch = classes.c_mismatch;
+		this.profile = new ScoreProfile(classes.profile, this);
+	}
+
+	/**
+	 * Returns whether the coiled-coil correction never applies to two
+	 * sequences: neither has a residue in a coil, so they score exactly as
+	 * with the scoring matrix alone.
+	 * 
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @return true if plain Smith-Waterman gives the same alignment
+	 */
+	public static boolean isPlain(Sequence seq1, Sequence seq2) {
+		return !seq1.coiled && !seq2.coiled;
+	}
 
 	/**
 	 * Aligns two sequences by Smith-Waterman algorithm
@@ -74,197 +214,1925 @@ public class SmithWatermanGotoh {
 	 */
 	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
 			float o, float e, float c_match, float c_mismatch) {
+		return align(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, DEFAULT_TRACEBACK_MEMORY);
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm. If the traceback
+	 * matrix would need more than the given amount of memory, the alignment
+	 * is traced back in linear space: only checkpoint rows are kept during
+	 * the forward pass, and the rows along the path are recomputed from the
+	 * nearest checkpoint. The resulting alignment is the same.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @see #getTracebackMemory(int, int)
+	 */
+	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch, long memory) {
+		try {
+			return align(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, memory, null);
+		} catch (IOException ex) {
+			// only the memory-mapped traceback matrix does any I/O
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm. The alignment is
+	 * found in three phases: a forward pass without traceback finds the
+	 * cell where it ends, a backward pass from that cell finds where it can
+	 * start, and the traceback matrix is only constructed for the window
+	 * between the two. If the traceback matrix of the window would need
+	 * more than the given amount of memory, it is kept in a memory-mapped
+	 * file outside of the Java heap if a directory is given, otherwise the
+	 * alignment is traced back in linear space.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix
+	 * @param directory
+	 *            directory for memory-mapped traceback matrices, or null
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @throws IOException
+	 *             if the memory-mapped traceback matrix cannot be created
+	 */
+	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch, long memory, File directory) throws IOException {
+		return align(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, memory, directory,
+				Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm, as
+	 * {@link #align(Sequence, Sequence, ArrayList, Matrix, float, float, float, float, long, File)},
+	 * optionally with X-drop pruning of the traceback matrix: cells that
+	 * score more than x below the best score so far are not part of any
+	 * alignment, and the cells they alone lead to are skipped, as in the
+	 * gapped extension of BLAST. This saves the cells away from the
+	 * alignment within the window, but an alignment whose score drops by
+	 * more than x before it recovers is lost. Such alignments are marked
+	 * by {@link Alignment#isPruned()}, found by comparing with the forward
+	 * pass. Alignments traced back in linear space are not pruned.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix
+	 * @param directory
+	 *            directory for memory-mapped traceback matrices, or null
+	 * @param x
+	 *            the X-drop, not negative, or
+	 *            {@link Float#POSITIVE_INFINITY} to compute all cells
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @throws IOException
+	 *             if the memory-mapped traceback matrix cannot be created
+	 */
+	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch, long memory, File directory, float x)
+			throws IOException {
+		return align(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, memory, null, directory, x);
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm, as
+	 * {@link #align(Sequence, Sequence, ArrayList, Matrix, float, float, float, float, long, File, float)},
+	 * with the memory of the traceback reserved from a budget shared with
+	 * the alignments run at the same time, see {@link MemoryBudget}. The
+	 * alignment waits until its traceback matrix on the heap fits in the
+	 * budget, or the checkpoints of the traceback in linear space, which is
+	 * used when the matrix would not fit in the budget even alone.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix
+	 * @param budget
+	 *            memory shared with other alignments, or null
+	 * @param directory
+	 *            directory for memory-mapped traceback matrices, or null
+	 * @param x
+	 *            the X-drop, not negative, or
+	 *            {@link Float#POSITIVE_INFINITY} to compute all cells
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @throws IOException
+	 *             if the memory-mapped traceback matrix cannot be created,
+	 *             or the thread is interrupted while waiting for memory
+	 */
+	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch, long memory, MemoryBudget budget, File directory,
+			float x) throws IOException {
+		return align(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, memory, budget, directory, x, null);
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm, as
+	 * {@link #align(Sequence, Sequence, ArrayList, Matrix, float, float, float, float, long, MemoryBudget, File, float)},
+	 * for a pair already scored by {@link #score}, so the scores are not
+	 * computed again to find where the alignment ends.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix
+	 * @param budget
+	 *            memory shared with other alignments, or null
+	 * @param directory
+	 *            directory for memory-mapped traceback matrices, or null
+	 * @param x
+	 *            the X-drop, not negative, or
+	 *            {@link Float#POSITIVE_INFINITY} to compute all cells
+	 * @param end
+	 *            the cell where the best local alignment ends, as returned
+	 *            by {@link #score} with the same parameters, or null
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @throws IOException
+	 *             if the memory-mapped traceback matrix cannot be created,
+	 *             or the thread is interrupted while waiting for memory
+	 */
+	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch, long memory, MemoryBudget budget, File directory,
+			float x, Cell end) throws IOException {
+		if (!(x >= 0)) {
+			throw new IllegalArgumentException("Invalid X-drop: " + x);
+		}
 		logger.info("Started...");
 		long start = System.currentTimeMillis();
-		float[][] blosum_scores = blosum.getScores();
-		float[][][] coil_scores = null;
-		
-		if (matrices != null)
-		{
-			coil_scores = new float[matrices.size()][][];
-			
-			for (int i=0; i<matrices.size(); i++)
-			{
-				coil_scores[i] = matrices.get(i).getScores();
-		    }
-		}
  
-		SmithWatermanGotoh sw = new SmithWatermanGotoh();
+		SmithWatermanGotoh sw = new SmithWatermanGotoh(seq1, seq2, blosum.getScores(),
+				getCoilScores(matrices), o, e, c_match, c_mismatch);
+
+		// the traceback never leaves the window between its start and end cells
+		if (end == null) {
+			end = sw.scan();
+		}
+		Cell origin = sw.locate(end);
+		int top = origin.getRow();
+		int left = origin.getCol();
+		sw = sw.window(top, left, end.getRow(), end.getCol());
+
+		Cell cell = new Cell();
+		cell.set(end.getRow() - top, end.getCol() - left, end.getScore());
 
-		int m = seq1.residues.length + 1;
-		int n = seq2.residues.length + 1;
+		int m = sw.seq1.length() + 1;
+		int n = sw.seq2.length() + 1;
 		
-		byte[] pointers = new byte[m * n];
+		Alignment alignment;
+		Band band;
+
+		boolean pruned = false;
+
+		// a traceback matrix that does not fit in the budget even alone is not kept on the heap
+		final long limit = budget == null ? memory : Math.min(memory, budget.getTotal());
+		final boolean onHeap = getTracebackMemory(m - 1, n - 1) <= limit;
+		final int rowsPerBand = Math.max(1, (int) Math.ceil(Math.sqrt(m - 1)));
+
+		long reserved = 0;
+		if (budget != null) {
+			try {
+				reserved = budget.reserve(onHeap ? getTracebackMemory(m - 1, n - 1)
+						: directory != null ? 0 : getCheckpointedMemory(m - 1, n, rowsPerBand));
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for memory to align " + seq1.name
+						+ " and " + seq2.name);
+			}
+		}
+
+		try {
+			if (onHeap || directory != null) {
+				band = onHeap ? sw.new Band(TracebackStore.onHeap(m, n), m - 1)
+						: sw.new Band(TracebackStore.mapped(m, n, directory), m - 1);
+				if (x != Float.POSITIVE_INFINITY) {
+					// the traceback starts from the best cell that survived the pruning
+					Cell best = sw.construct(band, x);
+					pruned = best.getScore() != cell.getScore() || best.getRow() != cell.getRow()
+							|| best.getCol() != cell.getCol();
+					cell = best;
+				} else {
+					sw.construct(band);
+				}
+			} else {
+				logger.info("Tracing back in bands of " + rowsPerBand + " rows");
+				band = sw.new CheckpointedBand(m - 1, n, rowsPerBand);
+			}
 
-		// Initializes the boundaries of the traceback matrix to STOP.
-		for (int i = 0, k = 0; i < m; i++, k += n) {
-			pointers[k] = Directions.STOP;
+			try {
+				alignment = sw.traceback(blosum, band, cell);
+			} finally {
+				band.close();
+			}
+		} finally {
+			if (budget != null) {
+				budget.release(reserved);
+			}
 		}
-		for (int j = 1; j < n; j++) {
-			pointers[j] = Directions.STOP;
+
+		alignment.setStart1(alignment.getStart1() + top);
+		alignment.setStart2(alignment.getStart2() + left);
+		alignment.setPruned(pruned);
+		alignment.setPlain(matrices != null && isPlain(seq1, seq2));
+
+		alignment.setName1(seq1.name);
+		alignment.setName2(seq2.name);
+		alignment.setMatrix(blosum);
+		alignment.setOpen(o);
+		alignment.setExtend(e);
+		logger.info("Finished in " + (System.currentTimeMillis() - start)
+				+ " milliseconds");
+		return alignment;
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm within a band of
+	 * diagonals, for pairs where the region of the alignment is already
+	 * known, e.g. from a previous search. Only the cells where residue i of
+	 * sequence #1 meets residue j of sequence #2 with lower &lt;= j - i &lt;=
+	 * upper are computed, so the time and memory grow with the length of
+	 * the sequences times the width of the band instead of the product of
+	 * the lengths. If the alignment found touches an edge of the band, the
+	 * band is widened by its width on that side and the alignment repeated,
+	 * until the alignment lies within the band. Once the band is as wide as
+	 * the matrix, or its traceback does not fit in the memory budget, the
+	 * pair is aligned by {@link #align} instead.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix
+	 * @param directory
+	 *            directory for memory-mapped traceback matrices, or null
+	 * @param lower
+	 *            lowest diagonal of the band
+	 * @param upper
+	 *            highest diagonal of the band
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @throws IOException
+	 *             if the memory-mapped traceback matrix cannot be created
+	 */
+	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch, long memory, File directory, int lower, int upper)
+			throws IOException {
+		return align(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, memory, null, directory, lower, upper);
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm within a band of
+	 * diagonals, for pairs where the region of the alignment is already
+	 * known, e.g. from a previous search. Only the cells where residue i of
+	 * sequence #1 meets residue j of sequence #2 with lower &lt;= j - i &lt;=
+	 * upper are computed, so the time and memory grow with the length of
+	 * the sequences times the width of the band instead of the product of
+	 * the lengths. If the alignment found touches an edge of the band, the
+	 * band is widened by its width on that side and the alignment repeated,
+	 * until the alignment lies within the band. Once the band is as wide as
+	 * the matrix, or its traceback does not fit in the memory budget, the
+	 * pair is aligned by {@link #align} instead. The traceback of the band is
+	 * reserved from a budget shared with the alignments run at the same
+	 * time, see {@link MemoryBudget}.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix
+	 * @param budget
+	 *            memory shared with other alignments, or null
+	 * @param directory
+	 *            directory for memory-mapped traceback matrices, or null
+	 * @param lower
+	 *            lowest diagonal of the band
+	 * @param upper
+	 *            highest diagonal of the band
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @throws IOException
+	 *             if the memory-mapped traceback matrix cannot be created,
+	 *             or the thread is interrupted while waiting for memory
+	 */
+	public static Alignment align(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch, long memory, MemoryBudget budget, File directory,
+			int lower, int upper) throws IOException {
+		final int m = seq1.length() + 1;
+		final int n = seq2.length() + 1;
+		lower = Math.max(lower, 1 - m);
+		upper = Math.min(upper, n - 1);
+
+		SmithWatermanGotoh sw = null;
+
+		while (lower <= upper && upper - lower + 1 < n) {
+			logger.info("Started band of diagonals " + lower + " to " + upper + "...");
+			long start = System.currentTimeMillis();
+
+			final int width = upper - lower + 1;
+			final long size = TracebackStore.getSize(m, width);
+			final boolean onHeap = size <= (budget == null ? memory : Math.min(memory, budget.getTotal()));
+			if (!onHeap && directory == null) {
+				break;
+			}
+
+			if (sw == null) {
+				sw = new SmithWatermanGotoh(seq1, seq2, blosum.getScores(),
+						getCoilScores(matrices), o, e, c_match, c_mismatch);
+			}
+
+			long reserved = 0;
+			if (budget != null && onHeap) {
+				try {
+					reserved = budget.reserve(size);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for memory to align " + seq1.name
+							+ " and " + seq2.name);
+				}
+			}
+
+			Alignment alignment;
+			try {
+				TracebackStore store = onHeap ? TracebackStore.onHeap(m, width)
+						: TracebackStore.mapped(m, width, directory);
+				DiagonalBand band = sw.new DiagonalBand(store, m - 1, lower, upper);
+				try {
+					Cell cell = sw.fillDiagonals(band);
+					alignment = sw.traceback(blosum, band, cell);
+				} finally {
+					band.close();
+				}
+			} finally {
+				if (budget != null) {
+					budget.release(reserved);
+				}
+			}
+
+			// the diagonals the alignment passes through, from its start cell
+			final char[] s1 = alignment.getSequence1();
+			final char[] s2 = alignment.getSequence2();
+			int d = alignment.getStart2() - alignment.getStart1();
+			int low = d, high = d;
+			for (int k = 0; k < s1.length; k++) {
+				if (s1[k] == Alignment.GAP) {
+					high = Math.max(high, ++d);
+				} else if (s2[k] == Alignment.GAP) {
+					low = Math.min(low, --d);
+				}
+			}
+
+			final boolean widenLower = low <= lower && lower > 1 - m;
+			final boolean widenUpper = high >= upper && upper < n - 1;
+
+			logger.info("Finished in " + (System.currentTimeMillis() - start)
+					+ " milliseconds");
+
+			if (!widenLower && !widenUpper) {
+				alignment.setPlain(matrices != null && isPlain(seq1, seq2));
+				alignment.setName1(seq1.name);
+				alignment.setName2(seq2.name);
+				alignment.setMatrix(blosum);
+				alignment.setOpen(o);
+				alignment.setExtend(e);
+				return alignment;
+			}
+
+			if (widenLower) lower = Math.max(lower - width, 1 - m);
+			if (widenUpper) upper = Math.min(upper + width, n - 1);
 		}
 
-		short[] sizesOfVerticalGaps = new short[m * n];
-		short[] sizesOfHorizontalGaps = new short[m * n];
-		for (int i = 0, k = 0; i < m; i++, k += n) {
-			for (int j = 0; j < n; j++) {
-				sizesOfVerticalGaps[k + j] = sizesOfHorizontalGaps[k + j] = 1;
+		return align(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, memory, budget, directory,
+				Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Finds the best local alignments of two sequences that do not
+	 * intersect, by the declumping of Waterman and Eggert: after each
+	 * alignment, the pairs of residues it aligns are forbidden to align
+	 * again, and the next alignment is the best one without them. Each
+	 * alignment may still cross the others by a gap. The first alignment
+	 * is the one of {@link #align}.
+	 * <p>
+	 * The matrix is cut into tiles, and only the scores on their edges are
+	 * kept, so forbidding the pairs of an alignment only recomputes the
+	 * tiles that hold them, and the tiles below and to the right of them
+	 * as long as the scores on their edges change. How many that is
+	 * depends on the shadow of the alignment: below a long alignment that
+	 * scores high, the scores fall off slowly, and most of the matrix may
+	 * be recomputed.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix and the
+	 *            edges of the tiles
+	 * @param count
+	 *            largest number of alignments
+	 * @return the alignments by decreasing score, at most count, and only
+	 *         those that score above 0
+	 */
+	public static ArrayList<Alignment> alignSuboptimal(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices,
+			Matrix blosum, float o, float e, float c_match, float c_mismatch, long memory, int count) {
+		try {
+			return alignSuboptimal(seq1, seq2, matrices, blosum, o, e, c_match, c_mismatch, memory, null, null,
+					count);
+		} catch (IOException ex) {
+			// the store is on the heap
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Finds the best local alignments of two sequences that do not
+	 * intersect, see
+	 * {@link #alignSuboptimal(Sequence, Sequence, ArrayList, Matrix, float, float, float, float, long, int)}.
+	 * A traceback matrix that does not fit in the memory budget with the
+	 * edges of the tiles is memory-mapped in a file of the directory, if
+	 * one is given, or else only one row of tiles of it is held at a time,
+	 * and the traceback recomputes the row of tiles it reaches from the
+	 * edges above, as {@link #align} does in linear space. Bigger tiles
+	 * are then used, so the edges fit in the budget.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @param memory
+	 *            memory budget in bytes for the traceback matrix and the
+	 *            edges of the tiles
+	 * @param budget
+	 *            memory shared with other alignments, or null
+	 * @param directory
+	 *            directory for memory-mapped traceback matrices, or null
+	 * @param count
+	 *            largest number of alignments
+	 * @return the alignments by decreasing score, at most count, and only
+	 *         those that score above 0
+	 * @throws IOException
+	 *             if the memory-mapped traceback matrix cannot be created,
+	 *             or the thread is interrupted while waiting for memory
+	 */
+	public static ArrayList<Alignment> alignSuboptimal(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices,
+			Matrix blosum, float o, float e, float c_match, float c_mismatch, long memory, MemoryBudget budget,
+			File directory, int count) throws IOException {
+		if (count < 0) {
+			throw new IllegalArgumentException("Invalid number of alignments: " + count);
+		}
+		ArrayList<Alignment> alignments = new ArrayList<Alignment>();
+		if (count == 0) {
+			return alignments;
+		}
+		logger.info("Started...");
+		long start = System.currentTimeMillis();
+
+		SmithWatermanGotoh sw = new SmithWatermanGotoh(seq1, seq2, blosum.getScores(),
+				getCoilScores(matrices), o, e, c_match, c_mismatch);
+
+		final int m = seq1.length() + 1;
+		final int n = seq2.length() + 1;
+
+		// the smallest tiles whose edges fit in the budget with the traceback matrix, or with a row of tiles of it
+		final long limit = budget == null ? memory : Math.min(memory, budget.getTotal());
+		final boolean onHeap = getSuboptimalMemory(m - 1, n - 1) <= limit;
+		final boolean checkpointed = !onHeap && directory == null;
+		int size = TILE_SIZE;
+		while (!onHeap && getDeclumpedMemory(m - 1, n, size, checkpointed) > limit && (long) size * size < 64L * m) {
+			size *= 2;
+		}
+		final long needed = onHeap ? getSuboptimalMemory(m - 1, n - 1) : getDeclumpedMemory(m - 1, n, size, checkpointed);
+
+		long reserved = 0;
+		if (budget != null) {
+			try {
+				reserved = budget.reserve(needed);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for memory to align " + seq1.name
+						+ " and " + seq2.name);
+			}
+		}
+
+		DeclumpedBand band;
+		try {
+			if (checkpointed) {
+				logger.info("Tracing back in rows of tiles of " + size + " rows");
+				band = sw.new DeclumpedBand(TracebackStore.onHeap(size + 1, n), m - 1, size, true);
+			} else {
+				band = sw.new DeclumpedBand(onHeap ? TracebackStore.onHeap(m, n) : TracebackStore.mapped(m, n, directory),
+						m - 1, size, false);
+			}
+
+			try {
+				Cell cell = band.getBest();
+				while (cell.getScore() > 0) {
+					Alignment alignment = sw.traceback(blosum, band, cell);
+					alignment.setPlain(matrices != null && isPlain(seq1, seq2));
+					alignment.setName1(seq1.name);
+					alignment.setName2(seq2.name);
+					alignment.setMatrix(blosum);
+					alignment.setOpen(o);
+					alignment.setExtend(e);
+					alignments.add(alignment);
+
+					if (alignments.size() == count) {
+						break;
+					}
+					band.declump(alignment);
+					cell = band.getBest();
+				}
+			} finally {
+				band.close();
+			}
+		} finally {
+			if (budget != null) {
+				budget.release(reserved);
+			}
+		}
+
+		logger.info("Finished " + alignments.size() + " alignments in " + (System.currentTimeMillis() - start)
+				+ " milliseconds, recomputing " + band.recomputed + " of " + (long) (m - 1) * (n - 1)
+				+ " cells");
+		return alignments;
+	}
+
+	/**
+	 * Returns the estimated memory needed by
+	 * {@link #alignSuboptimal(Sequence, Sequence, ArrayList, Matrix, float, float, float, float, long, int)}
+	 * for two sequences of the given lengths, with the whole traceback
+	 * matrix on the heap: a traceback direction for each cell, and the
+	 * scores on the edges of the tiles.
+	 *
+	 * @param length1
+	 *            length of sequence #1
+	 * @param length2
+	 *            length of sequence #2
+	 * @return memory in bytes
+	 */
+	public static long getSuboptimalMemory(int length1, int length2) {
+		return getTracebackMemory(length1, length2) + getDeclumpedMemory(length1, length2 + 1, TILE_SIZE, false);
+	}
+
+	/**
+	 * Returns the memory of a {@link DeclumpedBand} besides its traceback
+	 * matrix: the scores on the edges of the tiles and the best cell of
+	 * each tile, and in linear space the traceback matrix of a row of
+	 * tiles.
+	 *
+	 * @param rows
+	 *            number of rows of the matrix
+	 * @param n
+	 *            number of columns, including the boundary column
+	 * @param size
+	 *            number of rows and columns of each tile
+	 * @param checkpointed
+	 *            whether only a row of tiles of the traceback matrix is held
+	 * @return memory in bytes
+	 */
+	private static long getDeclumpedMemory(int rows, int n, int size, boolean checkpointed) {
+		final long tileRows = Math.max(1, (rows + size - 1) / size);
+		final long tileCols = (n + size - 1) / size;
+		final long edges = ((tileRows - 1) * n + (tileCols - 1) * (rows + 1)) * 2 * Float.BYTES;
+		final long bests = tileRows * tileCols * (Float.BYTES + 2 * Integer.BYTES);
+		return edges + bests + (checkpointed ? TracebackStore.getSize(size + 1, n) : 0);
+	}
+
+	/**
+	 * Returns the estimated memory needed for the traceback matrix when
+	 * aligning two sequences of the given lengths.
+	 *
+	 * @param length1
+	 *            length of sequence #1
+	 * @param length2
+	 *            length of sequence #2
+	 * @return memory in bytes
+	 */
+	public static long getTracebackMemory(int length1, int length2) {
+		return TracebackStore.getSize(length1 + 1, length2 + 1);
+	}
+
+	/**
+	 * Returns the memory of a traceback in linear space: a band of the
+	 * traceback matrix, and the scores of the row before each band.
+	 *
+	 * @param rows
+	 *            number of rows of the matrix
+	 * @param n
+	 *            number of columns, including the boundary column
+	 * @param rowsPerBand
+	 *            number of rows of each band
+	 * @return memory in bytes
+	 */
+	private static long getCheckpointedMemory(int rows, int n, int rowsPerBand) {
+		final long bands = Math.max(1, (rows + rowsPerBand - 1) / rowsPerBand);
+		return TracebackStore.getSize(rowsPerBand + 1, n) + bands * 2 * n * Float.BYTES;
+	}
+
+	/**
+	 * Returns the estimated cost of the cells of two sequences, in cells of
+	 * plain Smith-Waterman scored in one lane of {@link BatchScan}. Each
+	 * residue adds a few cells for the profiles, and the cells of two
+	 * residues in coils cost about twice as much as the others, as their
+	 * classes are split by register, so the cost grows with the product of
+	 * the fractions of the sequences in coils.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @return the estimated cost
+	 */
+	public static double getScoreCost(Sequence seq1, Sequence seq2) {
+		final double coils = (double) seq1.coiled_residues * seq2.coiled_residues
+				/ Math.max(1, (long) seq1.length() * seq2.length());
+		return (seq1.length() + (double) RESIDUE_COST2) * (seq2.length() + RESIDUE_COST1) * (1 + coils);
+	}
+
+	/**
+	 * Returns the estimated cost of scoring a sequence against several
+	 * others under several schemes, see {@link #scoreSchemes(Sequence,
+	 * Sequence[], ArrayList, Matrix, float, float, float, float)}, in the
+	 * cells of {@link #getScoreCost(Sequence, Sequence)}. The sequences are
+	 * grouped into batches the same way, and the lanes of a batch stop at
+	 * the end of their sequences. The profiles of a batch are computed
+	 * against all its residues under each scheme, which costs about as much
+	 * again as the cells of each sequence. The sequences of a batch with too
+	 * few lanes are scored pair by pair, which costs about as much: the
+	 * cells are slower to compute, but no profile of the batch is needed.
+	 *
+	 * @param seq1
+	 *            sequence #1
+	 * @param seqs2
+	 *            sequences to align sequence #1 with
+	 * @param schemes
+	 *            number of schemes
+	 * @return the estimated cost
+	 */
+	public static double getScoreCost(Sequence seq1, Sequence[] seqs2, int schemes) {
+		Sequence[] batches = seqs2.clone();
+		Arrays.sort(batches, new Comparator<Sequence>() {
+			public int compare(Sequence a, Sequence b) {
+				return compareBatchOrder(a, b);
+			}
+		});
+
+		final int width = getBatchWidth(schemes);
+		double cost = 0;
+		for (int first = 0, end; first < batches.length; first = end) {
+			end = getBatchEnd(batches, first, width);
+			for (int k = first; k < end; k++) {
+				cost += 2 * getScoreCost(seq1, batches[k]) * schemes;
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Returns the number of sequences scored at once by {@link
+	 * #scoreSchemes(Sequence, Sequence[], ArrayList, Matrix, float, float,
+	 * float, float)}.
+	 *
+	 * @param schemes
+	 *            number of schemes
+	 * @return the number of sequences of a batch
+	 */
+	public static int getBatchWidth(int schemes) {
+		return Math.max(1, BatchScan.LANES / schemes);
+	}
+
+	/**
+	 * Sets whether the big alignments of the current thread may be filled
+	 * in parallel on the common {@link ForkJoinPool}, see
+	 * {@link #fillWavefront}. A thread that already searches along with
+	 * others on a pool of its own turns this off, so a huge pair does not
+	 * add the threads of the common pool to those of its pool.
+	 *
+	 * @param parallel
+	 *            whether to fill in parallel, by default true
+	 */
+	public static void setParallel(boolean parallel) {
+		AlignmentWorkspace.get().setParallel(parallel);
+	}
+
+	/**
+	 * Drops the working arrays the current thread keeps for reuse from one
+	 * alignment to the next if they take more than
+	 * {@link AlignmentWorkspace#MAX_RETAINED} bytes, so a thread that
+	 * aligned a huge pair does not hold on to its memory. Call it between
+	 * alignments.
+	 */
+	public static void trimWorkspace() {
+		AlignmentWorkspace.get().trim();
+	}
+
+	/**
+	 * Compares two sequences by the order in which they are put into the
+	 * batches of {@link BatchScan}: those without coils first, which are
+	 * scored with the scoring matrix alone against a sequence without
+	 * coils, then the longest first, so a batch holds sequences of about the
+	 * same length.
+	 */
+	private static int compareBatchOrder(Sequence a, Sequence b) {
+		if (a.coiled != b.coiled) return a.coiled ? 1 : -1;
+		return b.length() - a.length();
+	}
+
+	/**
+	 * Returns the end of the batch of {@link BatchScan} that starts at a
+	 * sequence: at most width sequences, none shorter than half of the
+	 * first one, so the lanes of the batch run for about as many columns.
+	 *
+	 * @param sorted
+	 *            sequences in the order of {@link #compareBatchOrder}
+	 * @param first
+	 *            index of the first sequence of the batch
+	 * @param width
+	 *            largest number of sequences of a batch
+	 * @return the index after the last sequence of the batch
+	 */
+	private static int getBatchEnd(Sequence[] sorted, int first, int width) {
+		int end = first + 1;
+		while (end < sorted.length && end - first < width && 2 * sorted[end].length() >= sorted[first].length()) {
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Computes the score of the best local alignment of two sequences and the
+	 * cell where it ends, without building the traceback. Only two rows of
+	 * scores are kept, so this can be run on every pair to decide whether the
+	 * full alignment is needed at all.
+	 * 
+	 * @param seq1
+	 *            sequence #1
+	 * @param seq2
+	 *            sequence #2
+	 * @param matrices 
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @return The cell where the best local alignment ends, with its score.
+	 *         This is the same cell {@link #align} starts the traceback from.
+	 */
+	public static Cell score(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch) {
+		SmithWatermanGotoh sw = new SmithWatermanGotoh(seq1, seq2, blosum.getScores(),
+				getCoilScores(matrices), o, e, c_match, c_mismatch);
+		return sw.scan();
+	}
+
+	/**
+	 * Computes the scores of the best local alignments of a sequence with
+	 * each of several sequences and the cells where they end, without
+	 * building the tracebacks. The sequences are grouped by length, those
+	 * without coils apart from the others, and scored up to {@link BatchScan#LANES} at a time by {@link BatchScan};
+	 * a batch of fewer than {@link BatchScan#MIN_LANES} sequences, or of sequences of very different lengths, is
+	 * scored pair by pair instead. The
+	 * results are the same as those of {@link #score(Sequence, Sequence,
+	 * ArrayList, Matrix, float, float, float, float)} for each pair.
+	 * 
+	 * @param seq1
+	 *            sequence #1
+	 * @param seqs2
+	 *            sequences to align sequence #1 with
+	 * @param matrices 
+	 *            coiled-coil scoring matrices ({@link Matrix})
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @return The cell where the best local alignment ends, for each
+	 *         sequence of seqs2.
+	 */
+	public static Cell[] score(Sequence seq1, final Sequence[] seqs2, ArrayList<Matrix> matrices, Matrix blosum,
+			float o, float e, float c_match, float c_mismatch) {
+		ArrayList<ArrayList<Matrix>> schemes = new ArrayList<ArrayList<Matrix>>(1);
+		schemes.add(matrices);
+		return scoreSchemes(seq1, seqs2, schemes, blosum, o, e, c_match, c_mismatch)[0];
+	}
+
+	/**
+	 * Computes the scores of the best local alignments of a sequence with
+	 * each of several sequences under several scoring schemes, which only
+	 * differ in their coiled-coil matrices, in one pass. Each lane of
+	 * {@link BatchScan} holds a sequence under one scheme, so the sequences
+	 * are read and the matrices are swept once for all schemes. The schemes
+	 * share the classes of residues, which allow for the coils if any scheme
+	 * does. The results are the same as those of {@link #score(Sequence,
+	 * Sequence, ArrayList, Matrix, float, float, float, float)} for each pair
+	 * and scheme.
+	 * 
+	 * @param seq1
+	 *            sequence #1
+	 * @param seqs2
+	 *            sequences to align sequence #1 with
+	 * @param schemes
+	 *            coiled-coil scoring matrices ({@link Matrix}) of each
+	 *            scheme, or null for plain Smith-Waterman
+	 * @param blosum
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param c_match
+	 *            coil match reward
+	 * @param c_mismatch
+	 *            coil mismatch penalty
+	 * @return The cell where the best local alignment ends, for each scheme
+	 *         and each sequence of seqs2.
+	 */
+	public static Cell[][] scoreSchemes(Sequence seq1, final Sequence[] seqs2, ArrayList<ArrayList<Matrix>> schemes,
+			Matrix blosum, float o, float e, float c_match, float c_mismatch) {
+		logger.info("Started...");
+		long start = System.currentTimeMillis();
+
+		Integer[] order = new Integer[seqs2.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareBatchOrder(seqs2[a], seqs2[b]);
+			}
+		});
+
+		// the classes of residues are those of a scheme with coils, if any
+		final int count = schemes.size();
+		final float[][][][] coil_scores = new float[count][][][];
+		int classifying = 0;
+		for (int scheme = count - 1; scheme >= 0; scheme--) {
+			coil_scores[scheme] = getCoilScores(schemes.get(scheme));
+			if (coil_scores[scheme] != null) {
+				classifying = scheme;
+			}
+		}
+
+		Cell[][] cells = new Cell[count][seqs2.length];
+		final int width = getBatchWidth(count);
+		Sequence[] sorted = new Sequence[order.length];
+		for (int i = 0; i < order.length; i++) {
+			sorted[i] = seqs2[order[i]];
+		}
+
+		for (int first = 0, end; first < order.length; first = end) {
+			end = getBatchEnd(sorted, first, width);
+			final int targets = end - first;
+
+			if (targets * count >= BatchScan.MIN_LANES) {
+				int[] lanes = new int[targets * count];
+				int[] offsets = new int[targets * count];
+				int[] lengths = new int[targets * count];
+				Sequence.Builder residues = new Sequence.Builder();
+
+				for (int k = 0; k < targets; k++) {
+					for (int scheme = 0; scheme < count; scheme++) {
+						lanes[k * count + scheme] = scheme;
+						offsets[k * count + scheme] = residues.size();
+						lengths[k * count + scheme] = sorted[first + k].length();
+					}
+					residues.add(sorted[first + k]);
+				}
+
+				// the residues of the batch are classed together, against
+				// sequence #1, so all targets share one profile for each scheme
+				SmithWatermanGotoh classes = new SmithWatermanGotoh(seq1, residues.build("batch"), blosum.getScores(),
+						coil_scores[classifying], o, e, c_match, c_mismatch);
+
+				if (classes.profile.isCached()) {
+					ScoreProfile[] profiles = new ScoreProfile[count];
+					for (int scheme = 0; scheme < count; scheme++) {
+						profiles[scheme] = scheme == classifying ? classes.profile
+								: new SmithWatermanGotoh(classes, coil_scores[scheme]).profile;
+					}
+					Cell[] batch = BatchScan.scan(profiles, lanes, offsets, lengths, o, e);
+					for (int x = 0; x < batch.length; x++) {
+						cells[lanes[x]][order[first + x / count]] = batch[x];
+					}
+					continue;
+				}
+			}
+
+			// too few lanes to fill, or too many classes to look up
+			for (int k = 0; k < targets; k++) {
+				for (int scheme = 0; scheme < count; scheme++) {
+					cells[scheme][order[first + k]] = score(seq1, sorted[first + k], schemes.get(scheme),
+							blosum, o, e, c_match, c_mismatch);
+				}
+			}
+		}
+
+		logger.info("Finished in " + (System.currentTimeMillis() - start)
+				+ " milliseconds");
+		return cells;
+	}
+
+	/**
+	 * Returns the scores of the coiled-coil matrices, or null if the
+	 * coiled-coil correction is not used.
+	 * 
+	 * @param matrices
+	 *            coiled-coil scoring matrices, or null
+	 * @return scores of the matrices, indexed by register
+	 */
+	private static float[][][] getCoilScores(ArrayList<Matrix> matrices) {
+		if (matrices == null) {
+			return null;
+		}
+
+		float[][][] coil_scores = new float[matrices.size()][][];
+		for (int i = 0; i < matrices.size(); i++) {
+			coil_scores[i] = matrices.get(i).getScores();
+		}
+		return coil_scores;
+	}
+
+	/**
+	 * Computes the similarity scores of a residue of sequence #1 with
+	 * residues of sequence #2. At coiled-coil positions the matrix of the
+	 * register with the higher probability is used, and the score is
+	 * corrected depending on whether the possible registers of both
+	 * residues overlap. The mode and the properties of the residue of
+	 * sequence #1 are only looked at once.
+	 * 
+	 * @param i
+	 *            index of a residue of sequence #1
+	 * @param js
+	 *            indices of residues of sequence #2
+	 * @param scores
+	 *            on return, the similarity score of residue i with each
+	 *            residue of js, from the offset on
+	 * @param offset
+	 *            index in scores of the score of the first residue of js
+	 */
+	void similarity(int i, int[] js, float[] scores, int offset) {
+		final byte s1 = seq1.aa[i];
+		final float[] row = blosum[s1];
+
+		if (coil_scores == null) {
+			for (int k = 0; k < js.length; k++) {
+				scores[offset + k] = row[seq2.aa[js[k]]];
+			}
+			return;
+		}
+
+		final int r1 = seq1.registers[i];
+		final float p1 = seq1.cc_probs[i];
+		final byte mask1 = seq1.possible_registers[i];
+
+		for (int k = 0; k < js.length; k++) {
+			final int j = js[k];
+			final int r2 = seq2.registers[j];
+			final byte s2 = seq2.aa[j];
+
+			// at least one of the sequences is in a coil
+			if (r1 < 0 && r2 < 0) {
+				scores[offset + k] = row[s2];
+				continue;
+			}
+
+			// use coiled-coil matrix based on: (a) higher probability, or, (b) if equal probability, higher register
+			final float p2 = seq2.cc_probs[j];
+			float similarityScore = coil_scores[ (p1 > p2 || (p1 == p2 && r1 > r2)) ? r1 : r2  ][s1][s2];
+
+			if ((mask1 & seq2.possible_registers[j]) != 0) {
+				// overlap in possible registers: reward
+				similarityScore += c_match;
+			} else if (r1 >= 0 && r2 >= 0) {
+				// both are coils with high probability, but in different registers: punish
+				similarityScore -= c_mismatch;
+			}
+			scores[offset + k] = similarityScore;
+		}
+	}
+
+	/**
+	 * Runs the forward pass of the alignment keeping only the score rows.
+	 * The recurrences are the same as in {@link #fill}, so the score and
+	 * the end cell are identical. The striped pass of {@link StripedScan}
+	 * is used unless the gap penalties do not allow it.
+	 * 
+	 * @return The cell where the best local alignment ends.
+	 */
+	private Cell scan()
+	{
+		logger.info("Started...");
+		long start = System.currentTimeMillis();
+		
+		if (StripedScan.supports(o, e)) {
+			Cell cell = StripedScan.scan(profile, o, e);
+			logger.info("Finished in " + (System.currentTimeMillis() - start)
+					+ " milliseconds");
+			return cell;
+		}
+
+		final int m = seq1.length() + 1;
+		final int n = seq2.length() + 1;
+
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, n); // score if xi aligns to a gap after yi
+		float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, n); // best score of alignment x1...xi to y1...yi
+		
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
+
+		int best_row = 0, best_col = 0;
+		float best_score = 0;
+		
+		final float[] scores = profile.getScores();
+		final int[] columns = profile.columns;
+
+		for (int i = 1; i < m; i++) {
+			float h = Float.NEGATIVE_INFINITY; // score if yi aligns to a gap after xi
+			float vDiagonal = v[0];
+			
+			final int table = profile.getTable(profile.rows[i-1]);
+			
+			for (int j = 1; j < n; j++) {
+				final float f = vDiagonal + scores[table + columns[j-1]];
+
+				final float g1 = g[j] - e;
+				final float g2 = v[j] - o;
+				g[j] = g1 > g2 ? g1 : g2;
+
+				final float h1 = h - e;
+				final float h2 = v[j - 1] - o;
+				h = h1 > h2 ? h1 : h2;
+
+				vDiagonal = v[j];
+				v[j] = maximum(f, g[j], h, 0);
+
+				if (v[j] > best_score) {
+					best_row = i;
+					best_col = j;
+					best_score = v[j];
+				}
+			}
+		}
+		logger.info("Finished in " + (System.currentTimeMillis() - start)
+				+ " milliseconds");
+		
+		Cell cell = new Cell();
+		cell.set(best_row, best_col, best_score);
+		return cell;
+	}
+
+	/**
+	 * Finds the top left corner of a window of the matrix that contains the
+	 * traceback from the given end cell. The alignment is run backwards from
+	 * the end cell, anchored there, and the window spans all cells where an
+	 * alignment with the best score can start.
+	 * <p>
+	 * No part of the traceback has a score below zero when read backwards
+	 * from the end cell, since otherwise a cell before the end cell would
+	 * have had a higher score. Cells below that are dropped, so the
+	 * backward pass usually covers little more than the alignment itself.
+	 * The backward pass sums the scores in a different order than the
+	 * forward pass, so both bounds allow for rounding errors, unless all
+	 * sums are exact (see {@link #isExact}).
+	 * 
+	 * @param end
+	 *            the cell where the best local alignment ends
+	 * @return The cell before the first row and column of the window.
+	 */
+	private Cell locate(Cell end)
+	{
+		final int rows = end.getRow();
+		final int cols = end.getCol();
+		final float best = end.getScore();
+
+		Cell cell = new Cell();
+		if (best <= 0) {
+			cell.set(rows, cols, 0);
+			return cell;
+		}
+
+		final float tolerance = isExact(best) ? 0 : 8 * (rows + cols + 1) * Math.ulp(best);
+		final float dead = -tolerance;
+		final float threshold = best - tolerance;
+
+		// Row x and column y hold the best score of an alignment from
+		// cell (rows - x, cols - y) to the end cell.
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, cols + 1); // score if the alignment starts with a vertical gap
+		float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, cols + 1); // best score
+
+		Arrays.fill(g, 0, cols + 1, Float.NEGATIVE_INFINITY);
+		Arrays.fill(v, 0, cols + 1, Float.NEGATIVE_INFINITY);
+		v[0] = 0;
+
+		int top = 0, left = 0; // farthest candidate start, counted from the end cell
+		int lo = 0, hi = 0; // columns with live scores in the previous row
+
+		final float[] scores = profile.getScores();
+
+		float h = Float.NEGATIVE_INFINITY;
+		for (int y = 1; y <= cols; y++) {
+			h = Math.max(h - e, v[y - 1] - o);
+			if (h < dead) {
+				break;
+			}
+			v[y] = h;
+			hi = y;
+		}
+
+		for (int x = 1; x <= rows && lo <= hi; x++) {
+			h = Float.NEGATIVE_INFINITY;
+			float vDiagonal = Float.NEGATIVE_INFINITY;
+
+			final int table = profile.getTable(profile.rows[rows - x]);
+			int first = cols + 1, last = -1;
+
+			for (int y = lo; y <= cols; y++) {
+				if (y > 0) {
+					h = Math.max(h - e, v[y - 1] - o);
+					if (h < dead) {
+						h = Float.NEGATIVE_INFINITY;
+					}
+				}
+
+				if (y > hi + 1 && h == Float.NEGATIVE_INFINITY) {
+					// nothing to the right is reachable
+					break;
+				}
+
+				final float f = y > 0 ? vDiagonal + scores[table + profile.columns[cols - y]] : Float.NEGATIVE_INFINITY;
+
+				g[y] = Math.max(g[y] - e, v[y] - o);
+				if (g[y] < dead) {
+					g[y] = Float.NEGATIVE_INFINITY;
+				}
+
+				vDiagonal = v[y];
+				v[y] = Math.max(f, Math.max(g[y], h));
+				if (v[y] < dead) {
+					v[y] = Float.NEGATIVE_INFINITY;
+				} else if (v[y] >= threshold) {
+					top = x;
+					left = Math.max(left, y);
+				}
+
+				if (v[y] != Float.NEGATIVE_INFINITY) {
+					if (y < first) {
+						first = y;
+					}
+					last = y;
+				}
+			}
+
+			lo = first;
+			hi = last;
+		}
+
+		// keep a margin of one row and column around the candidate starts
+		cell.set(Math.max(0, rows - top - 1), Math.max(0, cols - left - 1), 0);
+		return cell;
+	}
+
+	/**
+	 * Returns whether all scores of alignments are computed without
+	 * rounding, in any order. This is the case if all similarity scores and
+	 * penalties are multiples of a power of two, such as integers of rounded
+	 * matrices together with a coiled-coil reward and penalty with few
+	 * binary places, and no sum needs more bits than a float holds.
+	 * 
+	 * @param best
+	 *            the best score of an alignment
+	 */
+	private boolean isExact(float best)
+	{
+		float quantum = 1;
+		float max = 0;
+
+		ArrayList<float[][]> matrices = new ArrayList<float[][]>();
+		matrices.add(blosum);
+		if (coil_scores != null) {
+			matrices.addAll(Arrays.asList(coil_scores));
+		}
+		for (float[][] matrix : matrices) {
+			for (float[] row : matrix) {
+				for (float x : row) {
+					quantum = getQuantum(x, quantum);
+					max = Math.max(max, Math.abs(x));
+				}
+			}
+		}
+		if (coil_scores != null) {
+			quantum = getQuantum(c_match, getQuantum(c_mismatch, quantum));
+			max += Math.abs(c_match) + Math.abs(c_mismatch);
+		}
+		quantum = getQuantum(o, getQuantum(e, quantum));
+
+		// no score is higher than the best, nor lower than a gap from zero
+		// followed by a mismatch
+		return quantum >= MIN_QUANTUM && (best + 2 * (max + o + e)) / quantum < (1 << 24);
+	}
+
+	/**
+	 * Returns the largest power of two up to the given one that divides a
+	 * number, or a value below {@link #MIN_QUANTUM} if there is none.
+	 */
+	private static float getQuantum(float x, float quantum)
+	{
+		while (quantum >= MIN_QUANTUM && Math.rint(x / quantum) != x / quantum) {
+			quantum /= 2;
+		}
+		return quantum;
+	}
+
+	/**
+	 * Returns the aligner for a window of the matrix. The directions
+	 * matrix of the window is the same as of the whole matrix along any
+	 * traceback that starts within the window, since the scores of the
+	 * window can only be lower and are equal along the traceback.
+	 * 
+	 * @param top
+	 *            row before the first row of the window
+	 * @param left
+	 *            column before the first column of the window
+	 * @param bottom
+	 *            last row of the window
+	 * @param right
+	 *            last column of the window
+	 * @return aligner of the residues within the window
+	 */
+	private SmithWatermanGotoh window(int top, int left, int bottom, int right)
+	{
+		return new SmithWatermanGotoh(seq1.subSequence(top, bottom), seq2.subSequence(left, right),
+				blosum, coil_scores, o, e, c_match, c_mismatch);
+	}
+
+	/**
+	 * Constructs directions matrix for the traceback
+	 * 
+	 * @param band
+	 *            storage for all rows of the traceback matrix
+	 * @return The cell where the traceback starts.
+	 */
+	private Cell construct(Band band)
+	{
+		logger.info("Started...");
+		long start = System.currentTimeMillis();
+		
+		final int n = band.n;
+
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, n); // score if xi aligns to a gap after yi
+		float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, n); // best score of alignment x1...xi to y1...yi
+
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
+
+		Cell cell = fill(band, g, v);
+
+		logger.info("Finished in " + (System.currentTimeMillis() - start)
+				+ " milliseconds");
+		return cell;
+	}
+
+	/**
+	 * Constructs directions matrix for the traceback with X-drop pruning,
+	 * see {@link #fillXDrop}.
+	 *
+	 * @param band
+	 *            storage for all rows of the traceback matrix
+	 * @param x
+	 *            the X-drop
+	 * @return The cell with the best score that was not pruned.
+	 */
+	private Cell construct(Band band, float x)
+	{
+		logger.info("Started with X-drop " + x + "...");
+		long start = System.currentTimeMillis();
+
+		final int n = band.n;
+
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, n);
+		float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, n);
+
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
+
+		Cell cell = fillXDrop(band, g, v, x);
+
+		logger.info("Finished in " + (System.currentTimeMillis() - start)
+				+ " milliseconds");
+		return cell;
+	}
+
+	/**
+	 * Fills the rows of a band of the directions matrix in square blocks,
+	 * row of blocks after row of blocks, so long rows do not push the
+	 * scores out of the cache. Big bands are filled in parallel, see
+	 * {@link #fillWavefront}, unless the thread is one of a pool, see
+	 * {@link #setParallel(boolean)}.
+	 *
+	 * @param band
+	 *            the band to fill, from its first to its last row
+	 * @param g
+	 *            vertical gap scores of the row before the band; on return,
+	 *            of the last row of the band
+	 * @param v
+	 *            scores of the row before the band; on return, of the last
+	 *            row of the band
+	 * @return The cell with the best score within the band.
+	 */
+	private Cell fill(Band band, float[] g, float[] v)
+	{
+		final int rows = band.last - band.first + 1;
+
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		if ((long) rows * band.n >= PARALLEL_CELLS && ForkJoinPool.getCommonPoolParallelism() > 1
+				&& workspace.isParallel() && profile.isCached()) {
+			return fillWavefront(band, g, v);
+		}
+		float[] leftV = workspace.getFloats(AlignmentWorkspace.LEFT_SCORES, BLOCK_SIZE + 1);
+		float[] leftH = workspace.getFloats(AlignmentWorkspace.LEFT_GAPS, BLOCK_SIZE + 1);
+
+		Cell best = new Cell();
+		best.set(0, 0, 0);
+
+		for (int top = band.first; top <= band.last; top += BLOCK_SIZE) {
+			final int bottom = Math.min(band.last, top + BLOCK_SIZE - 1);
+			Arrays.fill(leftV, 0, bottom - top + 2, v[0]);
+			Arrays.fill(leftH, 0, bottom - top + 2, Float.NEGATIVE_INFINITY);
+
+			for (int left = 0; left < band.n; left += BLOCK_SIZE) {
+				Cell cell = fillBlock(band, top, bottom, left, Math.min(band.n, left + BLOCK_SIZE), g, v,
+						leftV, leftH);
+				if (precedes(cell, best)) {
+					best = cell;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns whether a cell comes before another as the end of the best
+	 * alignment: it has a higher score, or the same score in an earlier
+	 * row, or in an earlier column of the same row.
+	 */
+	private static boolean precedes(Cell cell, Cell other) {
+		return cell.getScore() > other.getScore() || (cell.getScore() == other.getScore()
+				&& (cell.getRow() < other.getRow()
+						|| (cell.getRow() == other.getRow() && cell.getCol() < other.getCol())));
+	}
+
+	/**
+	 * Fills the rows of a band of the directions matrix in square blocks.
+	 * A block depends on the blocks above and to its left, so the blocks
+	 * on an anti-diagonal are filled in parallel on the common
+	 * {@link ForkJoinPool}, one anti-diagonal after the other. The blocks
+	 * pass the scores of their last row down through g and v, and those of
+	 * their last column to the right through a column for each row of
+	 * blocks. Each cell is computed as in the serial fill, so the matrix
+	 * and the best cell are the same.
+	 *
+	 * @param band
+	 *            the band to fill, from its first to its last row
+	 * @param g
+	 *            vertical gap scores of the row before the band; on return,
+	 *            of the last row of the band
+	 * @param v
+	 *            scores of the row before the band; on return, of the last
+	 *            row of the band
+	 * @return The cell with the best score within the band.
+	 */
+	private Cell fillWavefront(final Band band, final float[] g, final float[] v)
+	{
+		final int rows = band.last - band.first + 1;
+		final int blockRows = (rows + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		final int blockCols = (band.n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+		// the blocks share the score tables, so compute them beforehand
+		for (int c = 0; c < profile.getRowClassCount(); c++) {
+			profile.getTable(c);
+		}
+
+		final float[][] leftV = new float[blockRows][];
+		final float[][] leftH = new float[blockRows][];
+		for (int b = 0; b < blockRows; b++) {
+			final int length = Math.min(BLOCK_SIZE, rows - b * BLOCK_SIZE) + 1;
+			leftV[b] = filled(length, v[0]);
+			leftH[b] = filled(length, Float.NEGATIVE_INFINITY);
+		}
+
+		Cell best = new Cell();
+		best.set(0, 0, 0);
+
+		try {
+			for (int d = 0; d < blockRows + blockCols - 1; d++) {
+				ArrayList<Callable<Cell>> blocks = new ArrayList<Callable<Cell>>();
+
+				for (int b = Math.max(0, d - blockCols + 1); b <= Math.min(blockRows - 1, d); b++) {
+					final int top = band.first + b * BLOCK_SIZE;
+					final int bottom = Math.min(band.last, top + BLOCK_SIZE - 1);
+					final int left = (d - b) * BLOCK_SIZE;
+					final int right = Math.min(band.n, left + BLOCK_SIZE);
+					final float[] blockV = leftV[b];
+					final float[] blockH = leftH[b];
+
+					blocks.add(new Callable<Cell>() {
+						public Cell call() {
+							return fillBlock(band, top, bottom, left, right, g, v, blockV, blockH);
+						}
+					});
+				}
+
+				// the first cell in row-major order with the best score
+				for (Future<Cell> future : ForkJoinPool.commonPool().invokeAll(blocks)) {
+					Cell cell = future.get();
+					if (precedes(cell, best)) {
+						best = cell;
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted filling the directions matrix", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			}
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException(ex.getCause());
+		}
+		return best;
+	}
+
+	/**
+	 * Fills a block of the directions matrix.
+	 *
+	 * @param band
+	 *            the band of the block
+	 * @param top
+	 *            first row of the block
+	 * @param bottom
+	 *            last row of the block
+	 * @param left
+	 *            first column of the block, an even number
+	 * @param right
+	 *            column after the block
+	 * @param g
+	 *            vertical gap scores of the row before the block; on return,
+	 *            of the last row of the block, within its columns
+	 * @param v
+	 *            scores of the row before the block; on return, of the last
+	 *            row of the block, within its columns
+	 * @param leftV
+	 *            scores of the column before the block, from the row before
+	 *            the block; on return, of the last column of the block
+	 * @param leftH
+	 *            horizontal gap scores of the column before the block, from
+	 *            the row before the block; on return, of the last column of
+	 *            the block
+	 * @return The cell with the best score within the block.
+	 */
+	private Cell fillBlock(Band band, int top, int bottom, int left, int right, float[] g, float[] v,
+			float[] leftV, float[] leftH)
+	{
+		// the current row, written to the store when it is complete
+		final byte[] pointers = AlignmentWorkspace.get().getBytes(AlignmentWorkspace.POINTERS, right - left);
+		pointers[0] = Directions.STOP; // column 0 if the block is at the left
+
+		int best_row = 0, best_col = 0;
+		float best_score = 0;
+
+		float corner = leftV[0];
+		leftV[0] = v[right - 1];
+
+		final float[] scores = profile.getScores();
+		final int[] columns = profile.columns;
+
+		for (int i = top; i <= bottom; i++) {
+			final int t = i - top + 1;
+			float h = leftH[t]; // score if yi aligns to a gap after xi
+			float vLeft = leftV[t];
+			float vDiagonal = corner;
+			corner = vLeft;
+			
+			final int table = profile.getTable(profile.rows[i-1]);
+			
+			for (int j = Math.max(left, 1); j < right; j++) {
+
+				// Fill the matrices
+				final float f = vDiagonal + scores[table + columns[j-1]];
+
+				final float g1 = g[j] - e;
+				final float g2 = v[j] - o;
+				final float gap = g1 > g2 ? g1 : g2;
+				g[j] = gap;
+
+				final float h1 = h - e;
+				final float h2 = vLeft - o;
+				h = h1 > h2 ? h1 : h2;
+
+				vDiagonal = v[j];
+				final float score = maximum(f, gap, h, 0);
+				v[j] = score;
+				vLeft = score;
+
+				// Determine the traceback direction without branches: STOP
+				// before DIAGONAL before UP before LEFT, and flag the gaps
+				// that extend the gap of the previous cell
+				int direction = score == gap ? Directions.UP : Directions.LEFT;
+				direction = score == f ? Directions.DIAGONAL : direction;
+				direction = score == 0 ? Directions.STOP : direction;
+				direction |= g1 > g2 ? Directions.VERTICAL_EXTENSION : 0;
+				direction |= h1 > h2 ? Directions.HORIZONTAL_EXTENSION : 0;
+				pointers[j - left] = (byte) direction;
+
+				// Set the traceback start at the current cell i, j and score
+				if (score > best_score) {
+					best_row = i;
+					best_col = j;
+					best_score = score;
+				}
 			}
+
+			leftV[t] = vLeft;
+			leftH[t] = h;
+			band.store.putCells(i - band.first + 1, left, pointers, right - left);
 		}
 
-		Cell cell = sw.construct(seq1.residues, seq2.residues, blosum_scores, coil_scores, o, e, c_match, c_mismatch, pointers,
-				sizesOfVerticalGaps, sizesOfHorizontalGaps);
-		Alignment alignment = sw.traceback(seq1.residues, seq2.residues, blosum, pointers, cell,
-				sizesOfVerticalGaps, sizesOfHorizontalGaps);
-		alignment.setName1(seq1.name);
-		alignment.setName2(seq2.name);
-		alignment.setMatrix(blosum);
-		alignment.setOpen(o);
-		alignment.setExtend(e);
-		logger.info("Finished in " + (System.currentTimeMillis() - start)
-				+ " milliseconds");
-		return alignment;
+		Cell cell = new Cell();
+		cell.set(best_row, best_col, best_score);
+		return cell;
 	}
 
 	/**
-	 * Constructs directions matrix for the traceback
-	 * 
-	 * @param seq1
-	 *            sequence #1
-	 * @param seq2
-	 *            sequence #2
-	 * @param blosum
-	 *            scoring matrix
-	 * @param coil_scores 
-	 * @param o
-	 *            open gap penalty
-	 * @param e
-	 *            extend gap penalty
-	 * @param c3 
-	 * 			  coil mismatch penalty
-	 * @return The cell where the traceback starts.
+	 * Fills the directions matrix of a band of diagonals. The cells outside
+	 * of the band are not part of any alignment: gaps cannot be opened or
+	 * extended from them, and the boundary cells of row 0 and column 0 only
+	 * start alignments within the band. Within the band, each cell is
+	 * computed as in {@link #fillBlock}, so if the band covers the whole
+	 * matrix, the matrix and the best cell are the same.
+	 *
+	 * @param band
+	 *            the band to fill, with all rows of the matrix
+	 * @return The cell with the best score within the band.
 	 */
-	private Cell construct(Residue[] seq1, Residue[] seq2, float[][] blosum, float[][][] coil_scores, float o,
-			float e, float c_match, float c_mismatch, byte[] pointers, short[] sizesOfVerticalGaps,
-			short[] sizesOfHorizontalGaps) 
+	private Cell fillDiagonals(DiagonalBand band)
 	{
-		logger.info("Started...");
-		long start = System.currentTimeMillis();
-		
-		final int m = seq1.length + 1;
-		final int n = seq2.length + 1;
+		final int n = seq2.length() + 1;
+		final int lower = band.lower;
+		final int upper = band.upper;
 
-		float[] g = new float[n]; // score if xi aligns to a gap after yi
-		float[] v = new float[n]; // best score of alignment x1...xi to y1...yi
-		
-		for (int j = 0; j < n; j++) {
-			g[j] = Float.NEGATIVE_INFINITY;
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		final float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, n);
+		final float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, n);
+		final byte[] pointers = workspace.getBytes(AlignmentWorkspace.POINTERS, band.n);
+
+		// cells of the row before are only read within the band, those right
+		// of it have never been written
+		Arrays.fill(g, 0, n, Float.NEGATIVE_INFINITY);
+		Arrays.fill(v, 0, n, Float.NEGATIVE_INFINITY);
+		for (int j = Math.max(0, lower); j <= upper; j++) {
 			v[j] = 0;
 		}
 
-		int best_row = 0, best_col = 0;
+		// a boundary cell of the band, where an empty alignment starts
+		int best_row = Math.max(0, -lower), best_col = Math.max(0, lower);
 		float best_score = 0;
-		
-		for (int i = 1, k = n; i < m; i++, k += n) {
-			float h = Float.NEGATIVE_INFINITY; // score if yi aligns to a gap after xi
-			float vDiagonal = v[0];
-			
-			final Residue residue1 = seq1[i-1];
 
-			final int r1 = residue1.register;
-			final char s1 = residue1.aa;
-			final float p1 = residue1.cc_prob;
-			final BitSet possible1 = residue1.possible_registers;
-			
-			for (int j = 1, l = k + 1; j < n; j++, l++) {
+		final float[] scores = profile.getScores();
+		final int[] columns = profile.columns;
 
-				final Residue residue2 = seq2[j-1];
+		for (int i = 1; i <= seq1.length(); i++) {
+			final int from = Math.max(1, i + lower);
+			final int to = Math.min(n - 1, i + upper);
+			final boolean boundary = i + lower <= 0 && i + upper >= 0; // whether column 0 is in the band
+			Arrays.fill(pointers, 0, band.n, Directions.STOP);
+			if (from > to) {
+				// the band passes this row left or right of the matrix
+				v[0] = boundary ? 0 : Float.NEGATIVE_INFINITY;
+				band.store.putRow(i, pointers);
+				continue;
+			}
 
-				final int r2 = residue2.register;
-				final char s2 = residue2.aa;
-				final float p2 = residue2.cc_prob;
-				final BitSet possible2 = residue2.possible_registers;
-				
-				float similarityScore;
-				
-				if (coil_scores != null)
-				{
-					// at least one of the sequences is in a coil
-					if (r1 >= 0 || r2 >= 0)
-					{
-						// use coiled-coil matrix based on: (a) higher probability, or, (b) if equal probability, higher register
-						similarityScore = coil_scores[ (p1 > p2 || (p1 == p2 && r1 > r2)) ? r1 : r2  ][s1][s2]; 
-						
-						if (possible1.intersects(possible2))
-						{
-							// overlap in possible registers: reward
-							similarityScore += c_match;
-						} else if (r1 >= 0 && r2 >= 0) {
-							// both are coils with high probability, but in different registers: punish
-							similarityScore -= c_mismatch;
-						}
-					}
-					else
-					{
-						similarityScore = blosum[s1][s2];
-					}
-				}
-				else
-				{
-					similarityScore = blosum[s1][s2];
-				}
-				
-				// Fill the matrices
-				final float f = vDiagonal + similarityScore;
+			float h = Float.NEGATIVE_INFINITY; // score if yi aligns to a gap after xi
+			float vLeft = boundary ? 0 : Float.NEGATIVE_INFINITY;
+			float vDiagonal = v[from - 1];
+
+			final int table = profile.getTable(profile.rows[i-1]);
+
+			for (int j = from; j <= to; j++) {
+				final float f = vDiagonal + scores[table + columns[j-1]];
 
 				final float g1 = g[j] - e;
 				final float g2 = v[j] - o;
-				if (g1 > g2) {
-					g[j] = g1;
-					sizesOfVerticalGaps[l] = (short) (sizesOfVerticalGaps[l - n] + 1);
-				} else {
-					g[j] = g2;
-				}
+				final float gap = g1 > g2 ? g1 : g2;
+				g[j] = gap;
 
 				final float h1 = h - e;
-				final float h2 = v[j - 1] - o;
-				if (h1 > h2) {
-					h = h1;
-					sizesOfHorizontalGaps[l] = (short) (sizesOfHorizontalGaps[l - 1] + 1);
-				} else {
-					h = h2;
-				}
+				final float h2 = vLeft - o;
+				h = h1 > h2 ? h1 : h2;
 
 				vDiagonal = v[j];
-				v[j] = maximum(f, g[j], h, 0);
+				final float score = maximum(f, gap, h, 0);
+				v[j] = score;
+				vLeft = score;
 
-				// Determine the traceback direction
-				if (v[j] == 0) {
-					pointers[l] = Directions.STOP;
-				} else if (v[j] == f) {
-					pointers[l] = Directions.DIAGONAL;
-				} else if (v[j] == g[j]) {
-					pointers[l] = Directions.UP;
-				} else {
-					pointers[l] = Directions.LEFT;
+				int direction = score == gap ? Directions.UP : Directions.LEFT;
+				direction = score == f ? Directions.DIAGONAL : direction;
+				direction = score == 0 ? Directions.STOP : direction;
+				direction |= g1 > g2 ? Directions.VERTICAL_EXTENSION : 0;
+				direction |= h1 > h2 ? Directions.HORIZONTAL_EXTENSION : 0;
+				pointers[j - i - lower] = (byte) direction;
+
+				if (score > best_score) {
+					best_row = i;
+					best_col = j;
+					best_score = score;
 				}
+			}
 
-				// Set the traceback start at the current cell i, j and score
-				if (v[j] > best_score) {
+			v[0] = boundary ? 0 : Float.NEGATIVE_INFINITY;
+			band.store.putRow(i, pointers);
+		}
+
+		Cell cell = new Cell();
+		cell.set(best_row, best_col, best_score);
+		return cell;
+	}
+
+	/**
+	 * Fills the rows of a band of the directions matrix, skipping the cells
+	 * that cannot be reached from any cell scoring at least x below the best
+	 * score so far. Such cells count as not reachable at all, as do the
+	 * pruned cells themselves, so each row is only computed over the
+	 * columns reached from the live cells of the row before and the cells
+	 * left of them. The cells that are computed get the same directions as
+	 * in {@link #fillBlock} unless they depend on a pruned cell, and the
+	 * rows of the store outside of them are left as they are, which is
+	 * STOP in a new store.
+	 *
+	 * @param band
+	 *            the band to fill, from its first to its last row
+	 * @param g
+	 *            vertical gap scores of the row before the band
+	 * @param v
+	 *            scores of the row before the band, all live
+	 * @param x
+	 *            the X-drop
+	 * @return The cell with the best score that was not pruned.
+	 */
+	private Cell fillXDrop(Band band, float[] g, float[] v, float x)
+	{
+		final int n = band.n;
+		final byte[] pointers = AlignmentWorkspace.get().getBytes(AlignmentWorkspace.POINTERS, n + 1);
+
+		int best_row = 0, best_col = 0;
+		float best_score = 0;
+
+		int lo = 0, hi = n - 1; // columns with live scores in the row before
+
+		final float[] scores = profile.getScores();
+		final int[] columns = profile.columns;
+
+		for (int i = band.first; i <= band.last && lo <= hi; i++) {
+			// column 0 scores 0, which is live until the best score exceeds x
+			final boolean zero = best_score - x <= 0;
+			final int from = Math.max(lo, 1);
+
+			float h = Float.NEGATIVE_INFINITY; // score if yi aligns to a gap after xi
+			float vLeft = zero ? 0 : Float.NEGATIVE_INFINITY;
+			float vDiagonal = lo == 0 ? v[0] : Float.NEGATIVE_INFINITY;
+
+			final int table = profile.getTable(profile.rows[i-1]);
+			final int left = from & ~1; // the store is written from an even column
+			pointers[0] = Directions.STOP; // column 0, or the column before an odd first column
+			int first = zero ? 0 : n, last = zero ? 0 : -1;
+
+			int j = from;
+			for (; j < n; j++) {
+				final float dead = best_score - x;
+				final float vUp = j <= hi ? v[j] : Float.NEGATIVE_INFINITY;
+				final float gUp = j <= hi ? g[j] : Float.NEGATIVE_INFINITY;
+
+				final float f = vDiagonal + scores[table + columns[j-1]];
+
+				final float g1 = gUp - e;
+				final float g2 = vUp - o;
+				final float gap = g1 > g2 ? g1 : g2;
+
+				final float h1 = h - e;
+				final float h2 = vLeft - o;
+				h = h1 > h2 ? h1 : h2;
+
+				vDiagonal = vUp;
+				final float score = maximum(f, gap, h, 0);
+
+				int direction = score == gap ? Directions.UP : Directions.LEFT;
+				direction = score == f ? Directions.DIAGONAL : direction;
+				direction = score == 0 ? Directions.STOP : direction;
+				direction |= g1 > g2 ? Directions.VERTICAL_EXTENSION : 0;
+				direction |= h1 > h2 ? Directions.HORIZONTAL_EXTENSION : 0;
+				pointers[j - left] = (byte) direction;
+
+				if (score > best_score) {
 					best_row = i;
 					best_col = j;
-					best_score = v[j];
+					best_score = score;
+				}
+
+				if (score < dead) {
+					v[j] = g[j] = h = vLeft = Float.NEGATIVE_INFINITY;
+					if (j > hi) {
+						// nothing to the right is reachable
+						j++;
+						break;
+					}
+				} else {
+					v[j] = vLeft = score;
+					g[j] = gap;
+					if (j < first) {
+						first = j;
+					}
+					last = j;
 				}
 			}
+
+			// j is the column after the computed cells; pad to whole bytes
+			int count = j - left;
+			if (count % 2 != 0 && j < n) {
+				pointers[count++] = Directions.STOP;
+			}
+			band.store.putCells(i - band.first + 1, left, pointers, count);
+
+			v[0] = zero ? 0 : Float.NEGATIVE_INFINITY;
+			lo = first;
+			hi = last;
 		}
-		logger.info("Finished in " + (System.currentTimeMillis() - start)
-				+ " milliseconds");
-		
+
 		Cell cell = new Cell();
 		cell.set(best_row, best_col, best_score);
 		return cell;
 	}
 
+	/**
+	 * Returns an array filled with a value.
+	 */
+	private static float[] filled(int length, float value)
+	{
+		float[] a = new float[length];
+		Arrays.fill(a, value);
+		return a;
+	}
+
 	private char mapRegister(int r)
 	{
 		if (r < 0) { return '-'; }
@@ -275,14 +2143,10 @@ public class SmithWatermanGotoh {
 	 * Returns the alignment of two sequences based on the passed array of
 	 * pointers
 	 * 
-	 * @param s1
-	 *            sequence #1
-	 * @param s2
-	 *            sequence #2
-	 * @param pc2 
-	 * @param pc1 
 	 * @param m
 	 *            scoring matrix
+	 * @param band
+	 *            the directions matrix
 	 * @param cell
 	 *            The cell where the traceback starts.
 	 * @return {@link Alignment}with the two aligned sequences and alignment
@@ -290,27 +2154,24 @@ public class SmithWatermanGotoh {
 	 * @see Cell
 	 * @see Alignment
 	 */
-	private Alignment traceback(Residue[] seq1, Residue[] seq2, Matrix m,
-			byte[] pointers, Cell cell, short[] sizesOfVerticalGaps,
-			short[] sizesOfHorizontalGaps) {
+	private Alignment traceback(Matrix m, Band band, Cell cell) {
 		logger.info("Started...");
 		long start = System.currentTimeMillis();
 		
 		float[][] scores = m.getScores(); // scores at this point are only for stating similarity
 
-		int n = seq2.length + 1;
-
 		Alignment alignment = new Alignment();
 		alignment.setScore(cell.getScore());
 
-		int maxlen = seq1.length + seq2.length; // maximum length after the
+		int maxlen = seq1.length() + seq2.length(); // maximum length after the
 												// aligned sequences
 
-		char[] reversed1 = new char[maxlen]; // reversed sequence #1
-		char[] reversed2 = new char[maxlen]; // reversed sequence #2
-		char[] reversed3 = new char[maxlen]; // reversed markup
-		char[] revcoils1 = new char[maxlen]; // reversed coils #1
-		char[] revcoils2 = new char[maxlen]; // reversed coils #2
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		char[] reversed1 = workspace.getChars(AlignmentWorkspace.REVERSED1, maxlen); // reversed sequence #1
+		char[] reversed2 = workspace.getChars(AlignmentWorkspace.REVERSED2, maxlen); // reversed sequence #2
+		char[] reversed3 = workspace.getChars(AlignmentWorkspace.MARKUP, maxlen); // reversed markup
+		char[] revcoils1 = workspace.getChars(AlignmentWorkspace.COILS1, maxlen); // reversed coils #1
+		char[] revcoils2 = workspace.getChars(AlignmentWorkspace.COILS2, maxlen); // reversed coils #2
 
 		int len1 = 0; // length of sequence #1 after alignment
 		int len2 = 0; // length of sequence #2 after alignment
@@ -324,38 +2185,45 @@ public class SmithWatermanGotoh {
 
 		int i = cell.getRow(); // traceback start row
 		int j = cell.getCol(); // traceback start col
-		int k = i * n;
 
 		boolean stillGoing = true; // traceback flag: true -> continue & false
 								   // -> stop
 
+		byte directions; // traceback direction and gap extension flags of cell i, j
+		boolean extended; // whether a gap extends to the previous cell
+
 		while (stillGoing) {
-			switch (pointers[k + j]) {
+			directions = band.store.getCell(band.offset(i) + j);
+
+			switch (directions & Directions.DIRECTION) {
 			case Directions.UP:
-				for (int l = 0, len = sizesOfVerticalGaps[k + j]; l < len; l++) {
+				// Walk up the vertical gap as long as it was extended
+				do {
+					extended = (directions & Directions.VERTICAL_EXTENSION) != 0;
 					--i;
-					reversed1[len1] = seq1[i].aa;
-					revcoils1[len1] = mapRegister(seq1[i].register);
+					reversed1[len1] = (char) seq1.aa[i];
+					revcoils1[len1] = mapRegister(seq1.registers[i]);
 					len1++;
 					revcoils2[len2] = Markups.GAP;
 					reversed2[len2] = Alignment.GAP;
 					len2++;
 					reversed3[len3++] = Markups.GAP;
-					k -= n;
 					gaps++;
-				}
+					if (extended) {
+						directions = band.store.getCell(band.offset(i) + j);
+					}
+				} while (extended);
 				break;
 				
 			case Directions.DIAGONAL:
 				--i;
 				--j;
-				c1 = seq1[i].aa;
-				c2 = seq2[j].aa;
-				k -= n;
+				c1 = (char) seq1.aa[i];
+				c2 = (char) seq2.aa[j];
 				reversed1[len1] = c1;
 				reversed2[len2] = c2;
-				revcoils1[len1] = mapRegister(seq1[i].register);
-				revcoils2[len2] = mapRegister(seq2[j].register);
+				revcoils1[len1] = mapRegister(seq1.registers[i]);
+				revcoils2[len2] = mapRegister(seq2.registers[j]);
 				len1++;
 				len2++;
 				if (c1 == c2) {
@@ -371,17 +2239,22 @@ public class SmithWatermanGotoh {
 				break;
 				
 			case Directions.LEFT:
-				for (int l = 0, len = sizesOfHorizontalGaps[k + j]; l < len; l++) {
+				// Walk left along the horizontal gap as long as it was extended
+				do {
+					extended = (directions & Directions.HORIZONTAL_EXTENSION) != 0;
 					reversed1[len1] = Alignment.GAP;
 					revcoils1[len1] = Markups.GAP;
 					len1++;
 					--j;
-					reversed2[len2] = seq2[j].aa;
-					revcoils2[len2] = mapRegister(seq2[j].register);
+					reversed2[len2] = (char) seq2.aa[j];
+					revcoils2[len2] = mapRegister(seq2.registers[j]);
 					len2++;
 					reversed3[len3++] = Markups.GAP;
 					gaps++;
-				}
+					if (extended) {
+						directions = band.store.getCell(band.offset(i) + j);
+					}
+				} while (extended);
 				break;
 			case Directions.STOP:
 				stillGoing = false;
@@ -449,4 +2322,627 @@ public class SmithWatermanGotoh {
 		}
 		return b;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Rows of the directions matrix held in a {@link TracebackStore}. Row i
+	 * of the matrix is stored as row (i - first + 1); store row 0 holds the
+	 * boundary row of the first band.
+	 */
+	private class Band implements Closeable {
+		/**
+		 * First row of the band
+		 */
+		int first;
+
+		/**
+		 * Last row of the band
+		 */
+		int last;
+
+		/**
+		 * Number of columns
+		 */
+		final int n;
+
+		/**
+		 * Storage for the rows of the band
+		 */
+		final TracebackStore store;
+
+		/**
+		 * Creates a band for the first rows of the directions matrix.
+		 *
+		 * @param store
+		 *            storage for the boundary row and the rows of the band
+		 * @param rows
+		 *            number of rows of the band
+		 */
+		Band(TracebackStore store, int rows) {
+			this.first = 1;
+			this.last = rows;
+			this.n = store.n;
+			this.store = store;
+
+			// Initializes the boundary of the traceback matrix to STOP.
+			byte[] pointers = AlignmentWorkspace.get().getBytes(AlignmentWorkspace.POINTERS, n);
+			Arrays.fill(pointers, 0, n, Directions.STOP);
+			store.putRow(0, pointers);
+		}
+
+		/**
+		 * Returns the index of column 0 of row i in the store.
+		 *
+		 * @param i
+		 *            row of the directions matrix, within the band or the
+		 *            boundary row 0
+		 * @return index in the store
+		 */
+		long offset(int i) {
+			return store.index(i - first + 1, 0);
+		}
+
+		/**
+		 * Releases the store.
+		 */
+		public void close() throws IOException {
+			store.close();
+		}
+	}
+
+	/**
+	 * Directions matrix that only holds one band of rows at a time. The
+	 * scores of the row before each band are kept as checkpoints, so any band can be recomputed exactly when the traceback
+	 * reaches it. With bands of sqrt(m) rows this needs O(n * sqrt(m))
+	 * memory and at most twice the time of the quadratic traceback.
+	 */
+	private class CheckpointedBand extends Band {
+		/**
+		 * Number of rows of each band
+		 */
+		private final int rowsPerBand;
+
+		/**
+		 * Number of rows of the matrix
+		 */
+		private final int rows;
+
+		/**
+		 * Scores of the row before each band
+		 */
+		private final float[][] checkpointsV;
+
+		/**
+		 * Vertical gap scores of the row before each band
+		 */
+		private final float[][] checkpointsG;
+
+		/**
+		 * Runs the forward pass over all rows, saving the checkpoints. The
+		 * last band is left in memory.
+		 *
+		 * @param rows
+		 *            number of rows of the matrix
+		 * @param n
+		 *            number of columns, including the boundary column
+		 * @param rowsPerBand
+		 *            number of rows of each band
+		 */
+		CheckpointedBand(int rows, int n, int rowsPerBand) {
+			super(TracebackStore.onHeap(rowsPerBand + 1, n), rowsPerBand);
+			this.rowsPerBand = rowsPerBand;
+			this.rows = rows;
+
+			int count = Math.max(1, (rows + rowsPerBand - 1) / rowsPerBand);
+			checkpointsV = new float[count][];
+			checkpointsG = new float[count][];
+
+			AlignmentWorkspace workspace = AlignmentWorkspace.get();
+			float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, n);
+			float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, n);
+			Arrays.fill(g, 0, n, Float.NEGATIVE_INFINITY);
+			Arrays.fill(v, 0, n, 0);
+
+			for (int b = 0; b < count; b++) {
+				first = b * rowsPerBand + 1;
+				last = Math.min(first + rowsPerBand - 1, rows);
+
+				checkpointsV[b] = Arrays.copyOf(v, n);
+				checkpointsG[b] = Arrays.copyOf(g, n);
+
+				fill(this, g, v);
+			}
+		}
+
+		/**
+		 * Returns the index of row i in the store, recomputing the band
+		 * that contains it if needed.
+		 */
+		@Override
+		long offset(int i) {
+			if (i < first && first > 1) {
+				load((i - 1) / rowsPerBand);
+			}
+			return super.offset(i);
+		}
+
+		/**
+		 * Recomputes a band from its checkpoint.
+		 *
+		 * @param b
+		 *            index of the band
+		 */
+		private void load(int b) {
+			first = b * rowsPerBand + 1;
+			last = Math.min(first + rowsPerBand - 1, rows);
+
+			AlignmentWorkspace workspace = AlignmentWorkspace.get();
+			float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, n);
+			float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, n);
+			System.arraycopy(checkpointsG[b], 0, g, 0, n);
+			System.arraycopy(checkpointsV[b], 0, v, 0, n);
+			fill(this, g, v);
+		}
+	}
+
+	/**
+	 * Directions matrix that only holds a band of diagonals, the cells
+	 * (i, j) with lower &lt;= j - i &lt;= upper. Row i is stored from column
+	 * i + lower on, so each row of the store is as wide as the band.
+	 */
+	private class DiagonalBand extends Band {
+		/**
+		 * Lowest diagonal of the band
+		 */
+		final int lower;
+
+		/**
+		 * Highest diagonal of the band
+		 */
+		final int upper;
+
+		/**
+		 * Creates a band of diagonals over all rows of the directions matrix.
+		 *
+		 * @param store
+		 *            storage for the boundary row and the rows of the band,
+		 *            with a column for each diagonal
+		 * @param rows
+		 *            number of rows of the matrix
+		 * @param lower
+		 *            lowest diagonal of the band
+		 * @param upper
+		 *            highest diagonal of the band
+		 */
+		DiagonalBand(TracebackStore store, int rows, int lower, int upper) {
+			super(store, rows);
+			this.lower = lower;
+			this.upper = upper;
+		}
+
+		/**
+		 * Returns the index of column 0 of row i in the store, which is
+		 * only valid when added to a column within the band.
+		 */
+		@Override
+		long offset(int i) {
+			return super.offset(i) - (i + lower);
+		}
+	}
+
+	/**
+	 * Directions matrix of all rows that can be updated in place when pairs
+	 * of residues are forbidden to align, see
+	 * {@link SmithWatermanGotoh#alignSuboptimal(Sequence, Sequence, ArrayList, Matrix, float, float, float, float, long, int)}.
+	 * The matrix is cut into square tiles, and only the scores on their
+	 * edges are kept: those of the last row of each row of tiles, and of
+	 * the last column of each column of tiles. A tile only depends on the
+	 * edges above and left of it and on its forbidden pairs, so forbidding
+	 * pairs recomputes the tiles that hold them, and then, in the order of
+	 * the rows, the tiles whose upper or left edge or corner changed. Each
+	 * cell is computed as in {@link #fillBlock}, except that a forbidden
+	 * pair cannot be reached diagonally.
+	 * <p>
+	 * If the store only holds one row of tiles, the tiles of the other rows
+	 * are recomputed for their edges alone, and the traceback recomputes the
+	 * row of tiles it reaches from the edges above it.
+	 */
+	private class DeclumpedBand extends Band {
+		/**
+		 * Change of the last row of a tile, see {@link #fillTile}
+		 */
+		private static final int CHANGED_EDGE = 1;
+
+		/**
+		 * Change of the last column of a tile
+		 */
+		private static final int CHANGED_SIDE = 2;
+
+		/**
+		 * Change of the score of the last cell of a tile
+		 */
+		private static final int CHANGED_CORNER = 4;
+
+		/**
+		 * Number of rows and of columns of each tile, even
+		 */
+		private final int size;
+
+		/**
+		 * Number of rows of the matrix
+		 */
+		private final int rows;
+
+		/**
+		 * Number of rows and of columns of tiles
+		 */
+		private final int tileRows, tileCols;
+
+		/**
+		 * Whether the store only holds one row of tiles
+		 */
+		private final boolean checkpointed;
+
+		/**
+		 * Row of tiles held in the store if it only holds one
+		 */
+		private int loaded;
+
+		/**
+		 * Scores of the last row of each row of tiles but the last
+		 */
+		private final float[][] edgesV;
+
+		/**
+		 * Vertical gap scores of the last row of each row of tiles but the
+		 * last
+		 */
+		private final float[][] edgesG;
+
+		/**
+		 * Scores of the last column of each column of tiles but the last,
+		 * for row 0 and each row
+		 */
+		private final float[][] sidesV;
+
+		/**
+		 * Horizontal gap scores of the last column of each column of tiles
+		 * but the last, for row 0 and each row
+		 */
+		private final float[][] sidesH;
+
+		/**
+		 * Best score of each tile, row of tiles after row of tiles
+		 */
+		private final float[] bestScores;
+
+		/**
+		 * Row and column of the first cell with the best score of each tile
+		 */
+		private final int[] bestRows, bestCols;
+
+		/**
+		 * Columns of the pairs of each row aligned by an earlier alignment,
+		 * sorted, or null if none
+		 */
+		private final int[][] forbidden;
+
+		/**
+		 * Tiles to recompute
+		 */
+		private final BitSet dirty = new BitSet();
+
+		/**
+		 * Number of cells recomputed after the first pass
+		 */
+		long recomputed;
+
+		/**
+		 * Fills all tiles of the matrix.
+		 *
+		 * @param store
+		 *            storage for the boundary row and all rows of the
+		 *            matrix, or one row of tiles
+		 * @param rows
+		 *            number of rows of the matrix
+		 * @param size
+		 *            number of rows and of columns of each tile, even
+		 * @param checkpointed
+		 *            whether the store only holds one row of tiles
+		 */
+		DeclumpedBand(TracebackStore store, int rows, int size, boolean checkpointed) {
+			super(store, checkpointed ? Math.min(size, rows) : rows);
+			this.size = size;
+			this.rows = rows;
+			this.checkpointed = checkpointed;
+			this.tileRows = Math.max(1, (rows + size - 1) / size);
+			this.tileCols = (n + size - 1) / size;
+
+			edgesV = new float[tileRows - 1][n];
+			edgesG = new float[tileRows - 1][n];
+			for (float[] edge : edgesG) {
+				Arrays.fill(edge, Float.NEGATIVE_INFINITY);
+			}
+			sidesV = new float[tileCols - 1][rows + 1];
+			sidesH = new float[tileCols - 1][rows + 1];
+			for (float[] side : sidesH) {
+				Arrays.fill(side, Float.NEGATIVE_INFINITY);
+			}
+			bestScores = new float[tileRows * tileCols];
+			bestRows = new int[tileRows * tileCols];
+			bestCols = new int[tileRows * tileCols];
+			forbidden = new int[rows + 1][];
+
+			// the last row of tiles is left in the store
+			for (int tr = 0; tr < tileRows; tr++) {
+				if (checkpointed) {
+					select(tr);
+				}
+				for (int tc = 0; tc < tileCols; tc++) {
+					fillTile(tr, tc, true);
+				}
+			}
+			loaded = checkpointed ? tileRows - 1 : -1;
+		}
+
+		/**
+		 * Returns the cell where the best alignment ends: the first cell in
+		 * the order of the rows with the highest score.
+		 */
+		Cell getBest() {
+			Cell best = new Cell();
+			best.set(0, 0, 0);
+			Cell cell = new Cell();
+			for (int t = 0; t < bestScores.length; t++) {
+				cell.set(bestRows[t], bestCols[t], bestScores[t]);
+				if (precedes(cell, best)) {
+					best.set(bestRows[t], bestCols[t], bestScores[t]);
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Forbids the pairs aligned by an alignment, and recomputes the
+		 * tiles whose scores change: those of the pairs, and those whose
+		 * edges above or to the left or corner change, in the order of the
+		 * rows of tiles.
+		 *
+		 * @param alignment
+		 *            alignment traced back from this matrix
+		 */
+		void declump(Alignment alignment) {
+			final char[] s1 = alignment.getSequence1();
+			final char[] s2 = alignment.getSequence2();
+			int i = alignment.getStart1(), j = alignment.getStart2();
+			for (int k = 0; k < s1.length; k++) {
+				if (s1[k] != Alignment.GAP) i++;
+				if (s2[k] != Alignment.GAP) j++;
+				if (s1[k] != Alignment.GAP && s2[k] != Alignment.GAP) {
+					forbid(i, j);
+					dirty.set(((i - 1) / size) * tileCols + j / size);
+				}
+			}
+
+			for (int t = dirty.nextSetBit(0); t >= 0; t = dirty.nextSetBit(t + 1)) {
+				dirty.clear(t);
+				final int tr = t / tileCols, tc = t % tileCols;
+				final int changes = fillTile(tr, tc, !checkpointed || tr == loaded);
+
+				if ((changes & CHANGED_EDGE) != 0) {
+					dirty.set(t + tileCols);
+				}
+				if ((changes & CHANGED_SIDE) != 0) {
+					dirty.set(t + 1);
+				}
+				if ((changes & CHANGED_CORNER) != 0) {
+					dirty.set(t + tileCols + 1);
+				}
+				recomputed += (long) (Math.min(rows, (tr + 1) * size) - tr * size)
+						* (Math.min(n, (tc + 1) * size) - Math.max(1, tc * size));
+			}
+		}
+
+		/**
+		 * Adds a column to the forbidden ones of a row.
+		 */
+		private void forbid(int i, int j) {
+			int[] columns = forbidden[i];
+			if (columns == null) {
+				forbidden[i] = new int[] { j };
+				return;
+			}
+			int k = Arrays.binarySearch(columns, j);
+			if (k >= 0) {
+				return;
+			}
+			k = -k - 1;
+			int[] grown = new int[columns.length + 1];
+			System.arraycopy(columns, 0, grown, 0, k);
+			grown[k] = j;
+			System.arraycopy(columns, k, grown, k + 1, columns.length - k);
+			forbidden[i] = grown;
+		}
+
+		/**
+		 * Returns the index of column 0 of row i in the store, recomputing
+		 * the row of tiles that contains it if needed.
+		 */
+		@Override
+		long offset(int i) {
+			if (checkpointed && ((i < first && first > 1) || i > last)) {
+				final int tr = Math.max(0, i - 1) / size;
+				select(tr);
+				for (int tc = 0; tc < tileCols; tc++) {
+					fillTile(tr, tc, true);
+				}
+				loaded = tr;
+			}
+			return super.offset(i);
+		}
+
+		/**
+		 * Makes the store hold a row of tiles.
+		 */
+		private void select(int tr) {
+			first = tr * size + 1;
+			last = Math.min(first + size - 1, rows);
+		}
+
+		/**
+		 * Computes a tile from the edges above and left of it, and updates
+		 * its best cell and its own edges.
+		 *
+		 * @param tr
+		 *            row of the tile
+		 * @param tc
+		 *            column of the tile
+		 * @param write
+		 *            whether to write the directions to the store, which
+		 *            must hold the row of the tile
+		 * @return which of the edges of the tile changed:
+		 *         {@link #CHANGED_EDGE}, {@link #CHANGED_SIDE} and
+		 *         {@link #CHANGED_CORNER}
+		 */
+		private int fillTile(int tr, int tc, boolean write) {
+			final int top = tr * size + 1;
+			final int bottom = Math.min(rows, top + size - 1);
+			final int left = tc * size;
+			final int right = Math.min(n, left + size);
+			final int height = bottom - top + 1;
+
+			AlignmentWorkspace workspace = AlignmentWorkspace.get();
+			final byte[] pointers = workspace.getBytes(AlignmentWorkspace.POINTERS, right - left);
+			final float[] g = workspace.getFloats(AlignmentWorkspace.VERTICAL_GAPS, n);
+			final float[] v = workspace.getFloats(AlignmentWorkspace.SCORES, n);
+			final float[] leftV = workspace.getFloats(AlignmentWorkspace.LEFT_SCORES, height + 1);
+			final float[] leftH = workspace.getFloats(AlignmentWorkspace.LEFT_GAPS, height + 1);
+			pointers[0] = Directions.STOP; // column 0 if the tile is at the left
+
+			// the row above the tile, and the column left of it with its corner
+			if (tr == 0) {
+				Arrays.fill(v, left, right, 0);
+				Arrays.fill(g, left, right, Float.NEGATIVE_INFINITY);
+			} else {
+				System.arraycopy(edgesV[tr - 1], left, v, left, right - left);
+				System.arraycopy(edgesG[tr - 1], left, g, left, right - left);
+			}
+			if (tc == 0) {
+				Arrays.fill(leftV, 0, height + 1, 0);
+				Arrays.fill(leftH, 0, height + 1, Float.NEGATIVE_INFINITY);
+			} else {
+				System.arraycopy(sidesV[tc - 1], top - 1, leftV, 0, height + 1);
+				System.arraycopy(sidesH[tc - 1], top - 1, leftH, 0, height + 1);
+			}
+
+			int best_row = 0, best_col = 0;
+			float best_score = 0;
+
+			final float[] scores = profile.getScores();
+			final int[] columns = profile.columns;
+			float corner = leftV[0];
+
+			for (int i = top; i <= bottom; i++) {
+				final int t = i - top + 1;
+				float h = leftH[t];
+				float vLeft = leftV[t];
+				float vDiagonal = corner;
+				corner = vLeft;
+
+				final int table = profile.getTable(profile.rows[i-1]);
+
+				// the next forbidden column of the row
+				final int[] banned = forbidden[i];
+				int b = 0;
+				if (banned != null) {
+					while (b < banned.length && banned[b] < left) b++;
+				}
+				int next = banned != null && b < banned.length ? banned[b] : n;
+
+				for (int j = Math.max(left, 1); j < right; j++) {
+					float f = vDiagonal + scores[table + columns[j-1]];
+					if (j == next) {
+						f = Float.NEGATIVE_INFINITY;
+						next = ++b < banned.length ? banned[b] : n;
+					}
+
+					final float g1 = g[j] - e;
+					final float g2 = v[j] - o;
+					final float gap = g1 > g2 ? g1 : g2;
+					g[j] = gap;
+
+					final float h1 = h - e;
+					final float h2 = vLeft - o;
+					h = h1 > h2 ? h1 : h2;
+
+					vDiagonal = v[j];
+					final float score = maximum(f, gap, h, 0);
+					v[j] = score;
+					vLeft = score;
+
+					int direction = score == gap ? Directions.UP : Directions.LEFT;
+					direction = score == f ? Directions.DIAGONAL : direction;
+					direction = score == 0 ? Directions.STOP : direction;
+					direction |= g1 > g2 ? Directions.VERTICAL_EXTENSION : 0;
+					direction |= h1 > h2 ? Directions.HORIZONTAL_EXTENSION : 0;
+					pointers[j - left] = (byte) direction;
+
+					if (score > best_score) {
+						best_row = i;
+						best_col = j;
+						best_score = score;
+					}
+				}
+
+				leftV[t] = vLeft;
+				leftH[t] = h;
+				if (write) {
+					store.putCells(i - first + 1, left, pointers, right - left);
+				}
+			}
+
+			final int tile = tr * tileCols + tc;
+			bestScores[tile] = best_score;
+			bestRows[tile] = best_row;
+			bestCols[tile] = best_col;
+
+			// the edges the tiles below and right of this one start from
+			int changes = 0;
+			if (tr < tileRows - 1) {
+				final float[] edgeV = edgesV[tr], edgeG = edgesG[tr];
+				for (int j = Math.max(left, 1); j < right; j++) {
+					if (v[j] != edgeV[j] || !isSameGap(g[j], edgeG[j])) {
+						changes |= CHANGED_EDGE;
+					}
+					edgeV[j] = v[j];
+					edgeG[j] = g[j];
+				}
+			}
+			if (tc < tileCols - 1) {
+				final float[] sideV = sidesV[tc], sideH = sidesH[tc];
+				for (int i = top; i <= bottom; i++) {
+					final int t = i - top + 1;
+					if (leftV[t] != sideV[i] || !isSameGap(leftH[t], sideH[i])) {
+						changes |= CHANGED_SIDE;
+					}
+					// the corner of the tile below and to the right
+					if (i == bottom && tr < tileRows - 1 && leftV[t] != sideV[i]) {
+						changes |= CHANGED_CORNER;
+					}
+					sideV[i] = leftV[t];
+					sideH[i] = leftH[t];
+				}
+			}
+			return changes;
+		}
+
+		/**
+		 * Returns whether two gap scores of a cell lead to the same cells.
+		 * A gap that scores less than opening a gap after it once extended
+		 * is never extended, as opening scores at least -o, so all such gaps
+		 * are the same as none.
+		 */
+		private boolean isSameGap(float a, float b) {
+			return a == b || (a - e < -o && b - e < -o);
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * $Id: StripedScan.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner;
+
+import java.util.Arrays;
+
+/**
+ * Score-only Smith-Waterman-Gotoh pass in the striped layout of Farrar
+ * (Bioinformatics 23(2), 2007). The columns are split into {@link #LANES} segments, and
+ * column t of all segments is stored together, so that the loops over a
+ * row only depend on the values {@link #LANES} places before and are
+ * compiled to SIMD instructions. Horizontal gaps crossing a segment
+ * boundary are corrected afterwards, usually within a few columns
+ * ("lazy F").
+ * <p>
+ * The scores of a row are gathered into the striped layout from the
+ * {@link ScoreProfile} of the sequences, so the coiled-coil correction
+ * costs nothing in the inner loops. The rows are split by the coils of
+ * sequence #1: the rows outside of coils fall in few classes, and the
+ * profile of each class is gathered once and kept. The classes of the rows
+ * in coils rarely repeat, so their profiles are gathered row by row into
+ * one array, which keeps the profiles that are read in the cache.
+ * <p>
+ * Long rows are split into tiles of at most {@link #TILE_COLUMNS} columns,
+ * so that the arrays of a row stay in the cache. Each tile is scanned over
+ * all rows, one tile after the other, and passes the scores and horizontal
+ * gap scores of its last column on to the next tile.
+ * <p>
+ * The scores are the same as those of the scalar pass, and the end cell is
+ * the same: the first cell in row-major order with the best score. This
+ * requires the gap open penalty to be at least the gap extension penalty.
+ */
+final class StripedScan {
+
+	/**
+	 * Number of lanes, i.e. of segments of the columns. Sixteen floats fill
+	 * a 512-bit register.
+	 */
+	static final int LANES = 16;
+
+	/**
+	 * Maximum number of scores kept in striped profiles
+	 */
+	private static final int MAX_CACHED = 1 << 22;
+
+	/**
+	 * Maximum number of columns of a tile. The five arrays of a row of a
+	 * tile take 160 KB, which fits in the L2 cache.
+	 */
+	static final int TILE_COLUMNS = 8192;
+
+	private StripedScan() {
+	}
+
+	/**
+	 * Returns whether the striped pass gives the same result as the scalar
+	 * pass for the given gap penalties.
+	 */
+	static boolean supports(float o, float e) {
+		return o >= e;
+	}
+
+	/**
+	 * Computes the score of the best local alignment of two sequences and
+	 * the cell where it ends.
+	 *
+	 * @param scores
+	 *            similarity scores of sequence #1, the rows, against
+	 *            sequence #2, the columns
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return The cell where the best local alignment ends.
+	 */
+	static Cell scan(ScoreProfile scores, float o, float e) {
+		final int length = scores.columns.length;
+		final int rows = scores.rows.length;
+		final int tiles = Math.max(1, (length + TILE_COLUMNS - 1) / TILE_COLUMNS);
+		final int width = (length + tiles - 1) / tiles;
+
+		// the scores and horizontal gap scores of the column before a tile,
+		// starting with the boundary column
+		final float[] leftV = new float[rows + 1];
+		final float[] leftH = new float[rows + 1];
+		Arrays.fill(leftH, Float.NEGATIVE_INFINITY);
+
+		Cell best = new Cell();
+		best.set(0, 0, 0);
+		for (int from = 1; from <= length; from += width) {
+			scanTile(scores, from, Math.min(length, from + width - 1), leftV, leftH, best, o, e);
+		}
+		return best;
+	}
+
+	/**
+	 * Scans the columns of a tile over all rows.
+	 *
+	 * @param scores
+	 *            similarity scores of sequence #1, the rows, against
+	 *            sequence #2, the columns
+	 * @param from
+	 *            first column of the tile
+	 * @param to
+	 *            last column of the tile
+	 * @param leftV
+	 *            scores of the column before the tile, from row 0; on
+	 *            return, of the last column of the tile
+	 * @param leftH
+	 *            horizontal gap scores of the column before the tile, from
+	 *            row 0; on return, of the last column of the tile
+	 * @param best
+	 *            the first cell in row-major order with the best score of
+	 *            the tiles before; on return, including this tile
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 */
+	private static void scanTile(ScoreProfile scores, int from, int to, float[] leftV, float[] leftH, Cell best,
+			float o, float e) {
+		final int length = to - from + 1;
+		final int segments = Math.max(1, (length + LANES - 1) / LANES); // columns per lane
+		final int size = segments * LANES;
+
+		// Column j (from 1) is at index (t * LANES + k), with j - 1 = k * segments + t.
+		// The profile of each class outside of coils is kept if they all
+		// fit, after the first array; the profiles of the other rows are
+		// built in the first array.
+		final int classes = scores.getRowClassCount();
+		final boolean cached = (long) classes * size <= MAX_CACHED;
+
+		AlignmentWorkspace workspace = AlignmentWorkspace.get();
+		final byte[] built = workspace.getBytes(AlignmentWorkspace.BUILT, classes);
+		Arrays.fill(built, 0, classes, (byte) 0);
+
+		// the class of each column in the striped layout, or -1 for the
+		// padding, so the profiles are gathered in order
+		final int[] striped = workspace.getInts(AlignmentWorkspace.STRIPED_COLUMNS, size);
+		for (int j = 1; j <= size; j++) {
+			striped[index(j, segments)] = j <= length ? scores.columns[from + j - 2] : -1;
+		}
+
+		// the rows are local arrays, so the compiler can tell them apart and
+		// vectorize the loops over them
+		float[] v = new float[size]; // scores of the previous row
+		float[] vNext = new float[size]; // scores of the current row
+		final float[] g = new float[size]; // vertical gap scores
+		final float[] h = new float[size]; // horizontal gap scores
+		final float[] carry = new float[LANES];
+
+		Arrays.fill(g, Float.NEGATIVE_INFINITY);
+
+		int best_row = best.getRow(), best_col = best.getCol();
+		float best_score = best.getScore();
+		int last = -1; // class of the profile in the first array
+		float corner = leftV[0]; // score of the column before the tile in the previous row
+		final int end = index(length, segments); // index of the last column
+
+		for (int i = 1; i <= scores.rows.length; i++) {
+			final int c = scores.rows[i - 1];
+			final boolean kept = cached && !scores.isCoiled(c);
+			final float[] p = workspace.getProfile(kept ? c + 1 : 0, size);
+			if (kept ? built[c] == 0 : c != last) {
+				getProfile(scores, c, striped, size, p);
+				if (kept) {
+					built[c] = 1;
+				} else {
+					last = c;
+				}
+			}
+
+			// the diagonal of the first column of each segment is the last
+			// column of the previous segment, or the column before the tile
+			for (int k = LANES - 1; k > 0; k--) {
+				carry[k] = v[size - LANES + k - 1];
+			}
+			carry[0] = corner;
+			diagonals(v, vNext, g, p, carry, o, e);
+
+			// the horizontal gap into the first column of a segment is only
+			// known for the first segment, from the column before the tile
+			Arrays.fill(h, 0, LANES, Float.NEGATIVE_INFINITY);
+			h[0] = Math.max(leftH[i] - e, leftV[i] - o);
+			vNext[0] = Math.max(vNext[0], h[0]);
+			gaps(vNext, h, LANES, o, e);
+
+			// Lazy F: carry the horizontal gaps over the segment boundaries
+			// until they no longer change any score
+			correction:
+			for (int round = 1; round < LANES; round++) {
+				for (int k = LANES - 1; k > 0; k--) {
+					final int x = size - LANES + k - 1;
+					carry[k] = Math.max(h[x] - e, vNext[x] - o);
+				}
+				carry[0] = Float.NEGATIVE_INFINITY;
+
+				// most gaps end within a few columns, so follow them column
+				// by column before updating the rest of the segments
+				for (int x = 0; x < size; x += LANES) {
+					boolean raised = false;
+					for (int k = 0; k < LANES; k++) {
+						raised |= carry[k] > h[x + k];
+					}
+					if (!raised) {
+						break correction;
+					}
+
+					for (int k = 0; k < LANES; k++) {
+						h[x + k] = Math.max(h[x + k], carry[k]);
+						vNext[x + k] = Math.max(vNext[x + k], h[x + k]);
+						carry[k] = Math.max(h[x + k] - e, vNext[x + k] - o);
+					}
+
+					if (x == LANES) {
+						gaps(vNext, h, x + LANES, o, e);
+						break;
+					}
+				}
+			}
+
+			corner = leftV[i];
+			leftV[i] = vNext[end];
+			leftH[i] = h[end];
+
+			// an earlier row of a later tile wins a tie
+			final float row_max = maximum(vNext);
+			if (row_max > best_score || (row_max == best_score && row_max > 0 && i < best_row)) {
+				for (int j = 1; j <= length; j++) {
+					if (vNext[index(j, segments)] == row_max) {
+						best_row = i;
+						best_col = from + j - 1;
+						best_score = row_max;
+						break;
+					}
+				}
+			}
+
+			float[] swap = v;
+			v = vNext;
+			vNext = swap;
+		}
+
+		best.set(best_row, best_col, best_score);
+	}
+
+	/**
+	 * Computes the vertical gap scores of a row, and its scores without the
+	 * horizontal gaps.
+	 *
+	 * @param v
+	 *            scores of the previous row
+	 * @param vNext
+	 *            scores of the row
+	 * @param g
+	 *            vertical gap scores of the previous row; on return, of the
+	 *            row
+	 * @param p
+	 *            profile of the residue of the row
+	 * @param diagonal
+	 *            scores of the previous row diagonal to the first column of
+	 *            each segment
+	 */
+	private static void diagonals(float[] v, float[] vNext, float[] g, float[] p, float[] diagonal,
+			float o, float e) {
+		for (int k = 0; k < LANES; k++) {
+			g[k] = Math.max(g[k] - e, v[k] - o);
+			vNext[k] = Math.max(Math.max(diagonal[k] + p[k], g[k]), 0);
+		}
+		for (int x = LANES; x < v.length; x++) {
+			g[x] = Math.max(g[x] - e, v[x] - o);
+			vNext[x] = Math.max(Math.max(v[x - LANES] + p[x], g[x]), 0);
+		}
+	}
+
+	/**
+	 * Adds the horizontal gaps within each segment to the scores of a row,
+	 * from the given column of each segment on.
+	 *
+	 * @param vNext
+	 *            scores of the row
+	 * @param h
+	 *            horizontal gap scores of the row
+	 * @param from
+	 *            index of the first column to update, after the first
+	 *            column of the segments
+	 */
+	private static void gaps(float[] vNext, float[] h, int from, float o, float e) {
+		for (int x = from; x < vNext.length; x++) {
+			h[x] = Math.max(h[x - LANES] - e, vNext[x - LANES] - o);
+			vNext[x] = Math.max(vNext[x], h[x]);
+		}
+	}
+
+	/**
+	 * Returns the highest score of a row, at least 0.
+	 */
+	private static float maximum(float[] v) {
+		float max = 0;
+		for (int x = 0; x < v.length; x++) {
+			max = Math.max(max, v[x]);
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the index of column j in the striped layout.
+	 */
+	private static int index(int j, int segments) {
+		return ((j - 1) % segments) * LANES + (j - 1) / segments;
+	}
+
+	/**
+	 * Builds the scores of a class of residues against all columns, in the
+	 * striped layout. The padding after the last column scores negative
+	 * infinity.
+	 *
+	 * @param scores
+	 *            similarity scores of the sequences
+	 * @param c
+	 *            class of sequence #1
+	 * @param striped
+	 *            class of sequence #2 at each index of the striped layout,
+	 *            or -1 for the padding
+	 * @param size
+	 *            number of indices of the striped layout
+	 * @param profile
+	 *            on return, the profile of the class
+	 */
+	private static void getProfile(ScoreProfile scores, int c, int[] striped, int size, float[] profile) {
+		final float[] table = scores.getScores();
+		final int offset = scores.getTable(c);
+		for (int x = 0; x < size; x++) {
+			profile[x] = striped[x] < 0 ? Float.NEGATIVE_INFINITY : table[offset + striped[x]];
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * $Id: TracebackStore.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage for the rows of a directions matrix. Each cell takes four bits:
+ * the traceback direction and the gap extension flags of {@link Directions}.
+ * Two cells are packed into a byte, and each row starts on a byte boundary.
+ * Cells are addressed with long indices, so matrices with more than 2^31
+ * cells can be stored. Rows are written whole or in parts starting at even
+ * columns, and each row lies within one page of the storage. Parts of rows
+ * that do not overlap can be written concurrently.
+ */
+public abstract class TracebackStore implements Closeable {
+
+	/**
+	 * Logger
+	 */
+	private static final Logger logger = Logger.getLogger(TracebackStore.class.getName());
+
+	/**
+	 * Maximum number of bytes of a page
+	 */
+	private static final int PAGE_BYTES = 1 << 27;
+
+	/**
+	 * Number of rows
+	 */
+	protected final int rows;
+
+	/**
+	 * Number of columns
+	 */
+	protected final int n;
+
+	/**
+	 * Number of bytes of each row
+	 */
+	protected final int bytesPerRow;
+
+	/**
+	 * Number of rows of each page
+	 */
+	protected final int rowsPerPage;
+
+	/**
+	 * Number of bytes of each page
+	 */
+	protected final int bytesPerPage;
+
+	/**
+	 * Buffer for packing a row
+	 */
+	protected final byte[] packed;
+
+	protected TracebackStore(int rows, int n, int maxPageBytes) {
+		this.rows = rows;
+		this.n = n;
+		this.bytesPerRow = (n + 1) / 2;
+		this.rowsPerPage = Math.max(1, Math.min(rows, maxPageBytes / bytesPerRow));
+		this.bytesPerPage = rowsPerPage * bytesPerRow;
+		this.packed = new byte[bytesPerRow];
+	}
+
+	/**
+	 * Returns the number of bytes needed to store a matrix.
+	 *
+	 * @param rows
+	 *            number of rows
+	 * @param n
+	 *            number of columns
+	 * @return size of the storage in bytes
+	 */
+	public static long getSize(int rows, int n) {
+		return (long) rows * ((n + 1) / 2);
+	}
+
+	/**
+	 * Returns the number of pages needed for all rows.
+	 */
+	protected int getPageCount() {
+		return (rows + rowsPerPage - 1) / rowsPerPage;
+	}
+
+	/**
+	 * Returns the number of rows of a page, the last page may be shorter.
+	 */
+	protected int getRowsOfPage(int page) {
+		return Math.min(rowsPerPage, rows - page * rowsPerPage);
+	}
+
+	/**
+	 * Returns the index of a cell.
+	 *
+	 * @param row
+	 *            row of the cell
+	 * @param col
+	 *            column of the cell
+	 * @return index of the cell
+	 */
+	public long index(int row, int col) {
+		return (long) row * bytesPerRow * 2 + col;
+	}
+
+	/**
+	 * Stores a row.
+	 *
+	 * @param row
+	 *            the row to store
+	 * @param cells
+	 *            traceback directions and gap extension flags of the row,
+	 *            one cell per byte
+	 */
+	public void putRow(int row, byte[] cells) {
+		int j = 0;
+		for (int b = 0; b < n / 2; b++, j += 2) {
+			packed[b] = (byte) (cells[j] | cells[j + 1] << 4);
+		}
+		if (j < n) {
+			packed[j / 2] = cells[j];
+		}
+		putPacked(row / rowsPerPage, (row % rowsPerPage) * bytesPerRow, packed, bytesPerRow);
+	}
+
+	/**
+	 * Stores a part of a row.
+	 *
+	 * @param row
+	 *            the row to store
+	 * @param col
+	 *            first column of the part, an even number
+	 * @param cells
+	 *            traceback directions and gap extension flags of the part,
+	 *            one cell per byte
+	 * @param count
+	 *            number of cells of the part, an even number unless the
+	 *            part ends the row
+	 */
+	public void putCells(int row, int col, byte[] cells, int count) {
+		assert col % 2 == 0 && (count % 2 == 0 || col + count == n);
+
+		final int length = (count + 1) / 2;
+		byte[] bytes = AlignmentWorkspace.get().getBytes(AlignmentWorkspace.PACKED, length);
+		int j = 0;
+		for (int b = 0; b < count / 2; b++, j += 2) {
+			bytes[b] = (byte) (cells[j] | cells[j + 1] << 4);
+		}
+		if (j < count) {
+			bytes[j / 2] = cells[j];
+		}
+		putPacked(row / rowsPerPage, (row % rowsPerPage) * bytesPerRow + col / 2, bytes, length);
+	}
+
+	/**
+	 * Copies packed cells to a page.
+	 */
+	protected abstract void putPacked(int page, int offset, byte[] bytes, int length);
+
+	/**
+	 * @return the byte holding a cell
+	 */
+	protected abstract byte getByte(int page, int offset);
+
+	/**
+	 * @return the traceback direction and gap extension flags of a cell
+	 */
+	public byte getCell(long cell) {
+		long i = cell >>> 1;
+		byte b = getByte((int) (i / bytesPerPage), (int) (i % bytesPerPage));
+		return (byte) ((cell & 1) == 0 ? b & 0xF : (b >>> 4) & 0xF);
+	}
+
+	/**
+	 * Releases the storage. The store cannot be used afterwards.
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * Creates a store on the Java heap.
+	 *
+	 * @param rows
+	 *            number of rows
+	 * @param n
+	 *            number of columns
+	 * @return the store
+	 */
+	public static TracebackStore onHeap(int rows, int n) {
+		return new HeapStore(rows, n);
+	}
+
+	/**
+	 * Creates a store in a memory-mapped temporary file, outside of the Java
+	 * heap. The file is deleted when the store is closed.
+	 *
+	 * @param rows
+	 *            number of rows
+	 * @param n
+	 *            number of columns
+	 * @param directory
+	 *            directory for the temporary file
+	 * @return the store
+	 * @throws IOException
+	 */
+	public static TracebackStore mapped(int rows, int n, File directory) throws IOException {
+		return new MappedStore(rows, n, directory);
+	}
+
+	/**
+	 * Store in pages of Java arrays.
+	 */
+	private static class HeapStore extends TracebackStore {
+		private byte[][] pages;
+
+		HeapStore(int rows, int n) {
+			super(rows, n, PAGE_BYTES);
+
+			pages = new byte[getPageCount()][];
+			for (int p = 0; p < pages.length; p++) {
+				pages[p] = new byte[getRowsOfPage(p) * bytesPerRow];
+			}
+		}
+
+		protected void putPacked(int page, int offset, byte[] bytes, int length) {
+			System.arraycopy(bytes, 0, pages[page], offset, length);
+		}
+
+		protected byte getByte(int page, int offset) {
+			return pages[page][offset];
+		}
+
+		public void close() {
+			pages = null;
+		}
+	}
+
+	/**
+	 * Store in a memory-mapped file. Each page is mapped separately.
+	 */
+	private static class MappedStore extends TracebackStore {
+		private final File file;
+		private final RandomAccessFile raf;
+		private MappedByteBuffer[] buffers;
+
+		MappedStore(int rows, int n, File directory) throws IOException {
+			super(rows, n, Integer.MAX_VALUE);
+
+			file = File.createTempFile("ccaligner", ".traceback", directory);
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+
+			try {
+				long size = getSize(rows, n);
+				raf.setLength(size);
+				logger.info("Mapping " + size + " bytes of traceback matrix to " + file);
+
+				buffers = new MappedByteBuffer[getPageCount()];
+
+				FileChannel channel = raf.getChannel();
+				for (int p = 0; p < buffers.length; p++) {
+					buffers[p] = channel.map(FileChannel.MapMode.READ_WRITE,
+							(long) p * bytesPerPage, (long) getRowsOfPage(p) * bytesPerRow);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		protected void putPacked(int page, int offset, byte[] bytes, int length) {
+			buffers[page].put(offset, bytes, 0, length);
+		}
+
+		protected byte getByte(int page, int offset) {
+			return buffers[page].get(offset);
+		}
+
+		public void close() throws IOException {
+			if (buffers != null) {
+				for (MappedByteBuffer buffer : buffers) {
+					if (buffer != null) unmap(buffer);
+				}
+			}
+			buffers = null;
+
+			raf.close();
+			if (!file.delete()) {
+				logger.warning("Failed deleting " + file);
+			}
+		}
+	}
+
+	/**
+	 * Unsafe.invokeCleaner, to unmap buffers, or null if not available
+	 */
+	private static Method invokeCleaner = null;
+	private static Object unsafe = null;
+	static {
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+			invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Mapped buffers will be released by the garbage collector: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Unmaps a buffer right away instead of waiting for the garbage
+	 * collector. The buffer must not be used afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (invokeCleaner == null) return;
+		try {
+			invokeCleaner.invoke(unsafe, buffer);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed unmapping buffer: " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * $Id: EngineCheck.java $
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package ccaligner.run;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ccaligner.Alignment;
+import ccaligner.Cell;
+import ccaligner.ScoreBound;
+import ccaligner.Sequence;
+import ccaligner.SmithWatermanGotoh;
+import ccaligner.matrix.Matrix;
+import ccaligner.matrix.MatrixLoader;
+import ccaligner.util.Commons;
+
+/**
+ * Checks the alignment engines against each other and against the scalar
+ * Smith-Waterman-Gotoh recurrence the aligner started from, on the bundled
+ * sequences of <code>sequences/hsa.tsv</code> against those of
+ * <code>sequences/cel.tsv</code>, with coiled-coil scoring and with plain
+ * Smith-Waterman:
+ * <ul>
+ * <li>the striped and profile score passes of
+ * {@link SmithWatermanGotoh#score(Sequence, Sequence, ArrayList, Matrix, float, float, float, float)},
+ * the batch scan of one protein against all targets, and the scan of
+ * several schemes in one pass, must give the score and end cell of the
+ * scalar recurrence, which is the first best cell in row-major order;</li>
+ * <li>the alignment must end in that cell with that score, and the same
+ * alignment must come out of the linear-space traceback, the traceback
+ * matrix mapped to a file, the alignment started from the scanned end
+ * cell, a band that holds all diagonals, an X-drop that prunes nothing,
+ * and the first of the suboptimal alignments;</li>
+ * <li>an X-drop that prunes, or a narrow band, may only lower the score,
+ * and a lower X-drop score must be marked as pruned;</li>
+ * <li>the score bound must let every pair reach its own score;</li>
+ * <li>the search of the debugging examples must print the same hits on
+ * three threads as on one, and with -k 2 the two best hits of each
+ * protein.</li>
+ * </ul>
+ * Run it with the compiled classes and the sequences and matrices on the
+ * class path:
+ * <pre>
+ * java -cp classes:commons-cli.jar ccaligner.run.EngineCheck
+ * </pre>
+ * It prints each mismatch and exits with status 1 if there was any.
+ */
+public class EngineCheck {
+
+	private static final float OPEN = 10;
+
+	private static final float EXTEND = 1;
+
+	private static final float C_MATCH = 0.15f;
+
+	private static final float C_MISMATCH = 0.15f;
+
+	/**
+	 * Number of mismatches found
+	 */
+	private static int failures = 0;
+
+	/**
+	 * Number of comparisons made
+	 */
+	private static int checks = 0;
+
+	public static void main(String[] args) throws Exception {
+		Logger.getLogger("").setLevel(Level.WARNING);
+
+		Sequence[] queries = load("hsa.tsv");
+		Sequence[] targets = load("cel.tsv");
+
+		Matrix blosum = MatrixLoader.load("BLOSUM62");
+		blosum.scaleScores(2);
+
+		ArrayList<Matrix> coils = new ArrayList<Matrix>();
+		for (char c : "abcdefg".toCharArray()) {
+			Matrix matrix = MatrixLoader.load(c + "_blosum.sij");
+			matrix.scaleScores(2);
+			coils.add(matrix);
+		}
+
+		ArrayList<ArrayList<Matrix>> schemes = new ArrayList<ArrayList<Matrix>>();
+		schemes.add(coils);
+		schemes.add(null);
+
+		File directory = Files.createTempDirectory("ccaligner").toFile();
+		try {
+			for (int s = 0; s < schemes.size(); s++) {
+				checkScheme(queries, targets, schemes, s, blosum, directory);
+			}
+		} finally {
+			directory.delete();
+		}
+
+		checkSearch();
+
+		System.out.println(checks + " checks, " + failures + " mismatches");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Checks the engines for one scheme of scoring on all pairs.
+	 */
+	private static void checkScheme(Sequence[] queries, Sequence[] targets, ArrayList<ArrayList<Matrix>> schemes,
+			int scheme, Matrix blosum, File directory) throws Exception {
+		final ArrayList<Matrix> matrices = schemes.get(scheme);
+		final String name = matrices == null ? "SW" : "CC";
+		final ScoreBound bound = new ScoreBound(matrices, blosum, OPEN, EXTEND, C_MATCH, C_MISMATCH);
+
+		for (Sequence query : queries) {
+			Cell[] batch = SmithWatermanGotoh.score(query, targets, matrices, blosum, OPEN, EXTEND, C_MATCH,
+					C_MISMATCH);
+			Cell[][] several = SmithWatermanGotoh.scoreSchemes(query, targets, schemes, blosum, OPEN, EXTEND,
+					C_MATCH, C_MISMATCH);
+
+			for (int k = 0; k < targets.length; k++) {
+				final Sequence target = targets[k];
+				final String pair = name + " " + query.name + " " + target.name;
+
+				Cell reference = reference(query, target, matrices, blosum);
+				String expected = key(reference);
+
+				Cell scored = SmithWatermanGotoh.score(query, target, matrices, blosum, OPEN, EXTEND, C_MATCH,
+						C_MISMATCH);
+				check(pair + " score", expected, key(scored));
+				check(pair + " batch", expected, key(batch[k]));
+				check(pair + " schemes", expected, key(several[scheme][k]));
+
+				check(pair + " bound",
+						"true", String.valueOf(bound.canReach(bound.getBound(query), bound.getBound(target),
+								reference.getScore())));
+
+				Alignment full = SmithWatermanGotoh.align(query, target, matrices, blosum, OPEN, EXTEND, C_MATCH,
+						C_MISMATCH);
+				if (reference.getScore() > 0) {
+					check(pair + " align", expected, key(full));
+				}
+				final String alignment = describe(full);
+
+				check(pair + " linear", alignment, describe(SmithWatermanGotoh.align(query, target, matrices,
+						blosum, OPEN, EXTEND, C_MATCH, C_MISMATCH, 0)));
+				check(pair + " mapped", alignment, describe(SmithWatermanGotoh.align(query, target, matrices,
+						blosum, OPEN, EXTEND, C_MATCH, C_MISMATCH, 0, directory)));
+				check(pair + " end cell", alignment, describe(SmithWatermanGotoh.align(query, target, matrices,
+						blosum, OPEN, EXTEND, C_MATCH, C_MISMATCH, Long.MAX_VALUE, null, null,
+						Float.POSITIVE_INFINITY, scored)));
+				check(pair + " band", alignment, describe(SmithWatermanGotoh.align(query, target, matrices,
+						blosum, OPEN, EXTEND, C_MATCH, C_MISMATCH, Long.MAX_VALUE, null, -query.length(),
+						target.length())));
+
+				Alignment unpruned = SmithWatermanGotoh.align(query, target, matrices, blosum, OPEN, EXTEND,
+						C_MATCH, C_MISMATCH, Long.MAX_VALUE, null, 1e9f);
+				check(pair + " X-drop", alignment, describe(unpruned));
+				check(pair + " X-drop pruned", "false", String.valueOf(unpruned.isPruned()));
+
+				Alignment pruned = SmithWatermanGotoh.align(query, target, matrices, blosum, OPEN, EXTEND,
+						C_MATCH, C_MISMATCH, Long.MAX_VALUE, null, 20);
+				check(pair + " X-drop 20", "true", String.valueOf(pruned.getScore() <= full.getScore()
+						&& (pruned.isPruned() || pruned.getScore() == full.getScore())));
+
+				int diagonal = full.getStart2() - full.getStart1();
+				Alignment banded = SmithWatermanGotoh.align(query, target, matrices, blosum, OPEN, EXTEND,
+						C_MATCH, C_MISMATCH, Long.MAX_VALUE, null, diagonal - 2, diagonal + 2);
+				check(pair + " narrow band", "true", String.valueOf(banded.getScore() <= full.getScore()));
+
+				ArrayList<Alignment> suboptimal = SmithWatermanGotoh.alignSuboptimal(query, target, matrices,
+						blosum, OPEN, EXTEND, C_MATCH, C_MISMATCH, Long.MAX_VALUE, 3);
+				if (reference.getScore() > 0) {
+					check(pair + " suboptimal", alignment, describe(suboptimal.get(0)));
+				}
+				for (int i = 1; i < suboptimal.size(); i++) {
+					check(pair + " suboptimal " + i, "true",
+							String.valueOf(suboptimal.get(i).getScore() <= suboptimal.get(i - 1).getScore()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the search of the debugging examples on several threads and
+	 * for the best hits only against the serial search of all hits.
+	 */
+	private static void checkSearch() throws Exception {
+		List<String> all = search("-D");
+		check("-D -t 3", all.toString(), search("-D", "-t", "3").toString());
+
+		Map<String, List<Float>> best = new HashMap<String, List<Float>>();
+		for (String line : all) {
+			String[] fields = line.split("\t");
+			List<Float> scores = best.get(fields[0]);
+			if (scores == null) {
+				scores = new ArrayList<Float>();
+				best.put(fields[0], scores);
+			}
+			scores.add(Float.valueOf(fields[2]));
+		}
+		for (List<Float> scores : best.values()) {
+			scores.sort(null);
+			while (scores.size() > 2) {
+				scores.remove(0);
+			}
+		}
+
+		Map<String, List<Float>> top = new HashMap<String, List<Float>>();
+		for (String line : search("-D", "-k", "2")) {
+			check("-D -k 2 " + line, "true", String.valueOf(all.contains(line)));
+			String[] fields = line.split("\t");
+			List<Float> scores = top.get(fields[0]);
+			if (scores == null) {
+				scores = new ArrayList<Float>();
+				top.put(fields[0], scores);
+			}
+			scores.add(Float.valueOf(fields[2]));
+		}
+		for (List<Float> scores : top.values()) {
+			scores.sort(null);
+		}
+		check("-D -k 2", new TreeMap<String, List<Float>>(best).toString(),
+				new TreeMap<String, List<Float>>(top).toString());
+	}
+
+	/**
+	 * Runs a search and returns the hits it prints.
+	 */
+	private static List<String> search(String... args) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(bytes, true));
+		try {
+			Run.main(args);
+		} finally {
+			System.setOut(out);
+		}
+
+		List<String> hits = new ArrayList<String>();
+		for (String line : bytes.toString().split("\n")) {
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				hits.add(line);
+			}
+		}
+		return hits;
+	}
+
+	private static void check(String what, String expected, String actual) {
+		checks++;
+		if (!expected.equals(actual)) {
+			failures++;
+			System.out.println("MISMATCH " + what + "\n  expected: " + expected + "\n  actual:   " + actual);
+		}
+	}
+
+	/**
+	 * Returns the score and end cell of the best local alignment of two
+	 * sequences by the scalar recurrence, one cell after the other.
+	 */
+	private static Cell reference(Sequence seq1, Sequence seq2, ArrayList<Matrix> matrices, Matrix blosum) {
+		final float[][] scores = blosum.getScores();
+		final int m = seq1.length() + 1;
+		final int n = seq2.length() + 1;
+
+		float[] g = new float[n];
+		float[] v = new float[n];
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+		}
+
+		int bestRow = 0, bestCol = 0;
+		float bestScore = 0;
+
+		for (int i = 1; i < m; i++) {
+			float h = Float.NEGATIVE_INFINITY;
+			float diagonal = v[0];
+			final byte s1 = seq1.aa[i - 1];
+			final int r1 = seq1.registers[i - 1];
+			final float p1 = seq1.cc_probs[i - 1];
+
+			for (int j = 1; j < n; j++) {
+				final byte s2 = seq2.aa[j - 1];
+				final int r2 = seq2.registers[j - 1];
+				final float p2 = seq2.cc_probs[j - 1];
+
+				float similarity;
+				if (matrices != null && (r1 >= 0 || r2 >= 0)) {
+					similarity = matrices.get((p1 > p2 || (p1 == p2 && r1 > r2)) ? r1 : r2).getScores()[s1][s2];
+					if ((seq1.possible_registers[i - 1] & seq2.possible_registers[j - 1]) != 0) {
+						similarity += C_MATCH;
+					} else if (r1 >= 0 && r2 >= 0) {
+						similarity -= C_MISMATCH;
+					}
+				} else {
+					similarity = scores[s1][s2];
+				}
+
+				final float f = diagonal + similarity;
+				g[j] = Math.max(g[j] - EXTEND, v[j] - OPEN);
+				h = Math.max(h - EXTEND, v[j - 1] - OPEN);
+
+				diagonal = v[j];
+				v[j] = Math.max(Math.max(f, g[j]), Math.max(h, 0));
+
+				if (v[j] > bestScore) {
+					bestRow = i;
+					bestCol = j;
+					bestScore = v[j];
+				}
+			}
+		}
+
+		Cell cell = new Cell();
+		cell.set(bestRow, bestCol, bestScore);
+		return cell;
+	}
+
+	private static String key(Cell cell) {
+		return cell.getScore() + " at " + cell.getRow() + "," + cell.getCol();
+	}
+
+	/**
+	 * Returns the score and end cell of an alignment.
+	 */
+	private static String key(Alignment alignment) {
+		int row = alignment.getStart1(), col = alignment.getStart2();
+		for (char c : alignment.getSequence1()) {
+			if (c != Alignment.GAP) row++;
+		}
+		for (char c : alignment.getSequence2()) {
+			if (c != Alignment.GAP) col++;
+		}
+		return alignment.getScore() + " at " + row + "," + col;
+	}
+
+	private static String describe(Alignment alignment) {
+		return alignment.getScore() + " from " + alignment.getStart1() + "," + alignment.getStart2() + " "
+				+ new String(alignment.getSequence1()) + " " + new String(alignment.getSequence2()) + " "
+				+ new String(alignment.getCoils1()) + " " + new String(alignment.getCoils2()) + " "
+				+ new String(alignment.getMarkupLine());
+	}
+
+	/**
+	 * Loads the sequences and coiled-coil predictions of a bundled file,
+	 * as {@link Run} does.
+	 */
+	private static Sequence[] load(String path) throws Exception {
+		List<Sequence> sequences = new ArrayList<Sequence>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				EngineCheck.class.getClassLoader().getResourceAsStream("ccaligner/run/sequences/" + path)));
+
+		Sequence.Builder residues = null;
+		String name = null;
+
+		for (String line = br.readLine(); line != null; line = br.readLine()) {
+			if (line.startsWith(">")) {
+				if (residues != null) {
+					sequences.add(residues.build(name));
+				}
+				name = Commons.extractName(line);
+				residues = new Sequence.Builder();
+			} else {
+				String[] l = line.split("\t");
+				int register = l[1].charAt(0) - 'a';
+				float prob = Float.valueOf(l[2]);
+				if (prob < 0.9) {
+					register = -1;
+				}
+				int possible_registers = 0;
+				for (int i = 0; i < 7; i++)
+					if (Float.valueOf(l[3 + i]) > 0.0) possible_registers |= 1 << i;
+				residues.add(l[0].charAt(0), register, prob, possible_registers);
+			}
+		}
+		if (residues != null) {
+			sequences.add(residues.build(name));
+		}
+		br.close();
+
+		return sequences.toArray(new Sequence[sequences.size()]);
+	}
+}
@@ -19,20 +19,37 @@
 package ccaligner.run;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.math.BigInteger;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,8 +66,10 @@ import org.biojavax.bio.seq.RichSequenceIterator;
 
 import ccaligner.Alignment;
 import ccaligner.AlignmentResult;
-import ccaligner.Residue;
+import ccaligner.Cell;
+import ccaligner.MemoryBudget;
 import ccaligner.ResultList;
+import ccaligner.ScoreBound;
 import ccaligner.Sequence;
 import ccaligner.SmithWatermanGotoh;
 import ccaligner.formats.Pair;
@@ -76,10 +95,17 @@ class DoRun // implements Runnable
 	private ArrayList<Matrix> matrices;
 	private Matrix blosum;
 	private boolean print_alignment;
+	private float bitscore_cutoff;
+	private long traceback_memory;
+	private File traceback_directory;
+	private float xdrop;
+	private PrintStream out = System.out;
+	private MemoryBudget budget;
+	private int alignments = 1;
 	
 	public DoRun(Sequence seq1, Sequence seq2, float paramGapOpen,
 			float paramGapExt, float paramCoilMatch, float paramCoilMismatch, ArrayList<Matrix> matrices,
-			Matrix blosum, boolean print_alignment) {
+			Matrix blosum, boolean print_alignment, float bitscore_cutoff, long traceback_memory, File traceback_directory, float xdrop) {
 		this.seq1 = seq1;
 		this.seq2 = seq2;
 		this.paramGapOpen = paramGapOpen;
@@ -89,35 +115,123 @@ class DoRun // implements Runnable
 		this.matrices = matrices;
 		this.blosum = blosum;
 		this.print_alignment = print_alignment;
+		this.bitscore_cutoff = bitscore_cutoff;
+		this.traceback_memory = traceback_memory;
+		this.traceback_directory = traceback_directory;
+		this.xdrop = xdrop;
 	}
 
+	/**
+	 * @param out where printed alignments go, by default System.out
+	 */
+	public void setOutput(PrintStream out)
+	{
+		this.out = out;
+	}
 
+	/**
+	 * @param budget memory shared with the alignments run at the same time, by default none
+	 */
+	public void setBudget(MemoryBudget budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * @param alignments the number of alignments of the pair printed with -a that have no pair of residues in
+	 * common, by default 1
+	 */
+	public void setAlignments(int alignments)
+	{
+		this.alignments = alignments;
+	}
 
 	public AlignmentResult run() throws Exception
+	{
+		return run(null);
+	}
+
+	/**
+	 * @param cell the end cell of the best alignment if the pair has already been scored, or null 
+	 */
+	public AlignmentResult run(Cell cell) throws Exception
 	{
 		try
 		{
-			Alignment alignment = SmithWatermanGotoh.align(seq1, seq2, matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch);
-
-			if (print_alignment)
+			if (!print_alignment)
 			{
-    	        System.out.println ( alignment.getSummary() );
-    	        System.out.println ( new Pair().format(alignment) );
-
-    	        System.out.println ( ">"+alignment.getName1() );
-    	        System.out.println ( alignment.getSequence1() );
-    	        System.out.println ( ">"+alignment.getName2() );
-    	        System.out.println ( alignment.getSequence2() );
+				// most pairs don't reach the cutoff: find the score without the traceback first,
+				// and only compute the full alignment for hits (the bitscore is the raw score)
+				if (cell == null) cell = SmithWatermanGotoh.score(seq1, seq2, matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch);
+				if (cell.getScore() < bitscore_cutoff)
+				{
+					return new AlignmentResult(seq1.name, seq2.name, cell.getScore());
+				}
 			}
+			
+			if (print_alignment && alignments > 1)
+			{
+				// the best alignments that have no pair of residues in common, the first of them as the hit
+				ArrayList<Alignment> found = SmithWatermanGotoh.alignSuboptimal(seq1, seq2, matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, traceback_memory, budget, traceback_directory, alignments);
+				if (!found.isEmpty())
+				{
+					for (Alignment alignment : found) print(alignment);
+					return new AlignmentResult(found.get(0));
+				}
+			}
+			
+			// alignments that are too big for the memory budget are traced back in a memory-mapped file, or in linear space;
+			// a pair already scored starts from its end cell
+			Alignment alignment = SmithWatermanGotoh.align(seq1, seq2, matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, traceback_memory, budget, traceback_directory, xdrop, cell);
+
+			if (print_alignment) print(alignment);
 
 			return new AlignmentResult(alignment);
 		}
-		catch (OutOfMemoryError e)
+		catch (Exception e)
 		{
-			// if the sequences are too big to compare with the current memory limits, take not of this 
-			// for later re-calculation
-			System.err.println("Not enough memory to align "+seq1.name+" and "+seq2.name);
-			return new AlignmentResult(seq1.name, seq2.name, "ERROR: Out of memory");
+			System.err.println("Exception when aligning "+seq1.name+" and "+seq2.name);
+			throw e;
+		}
+	}
+
+	/**
+	 * Prints an alignment with its summary, as with -a.
+	 */
+	private void print(Alignment alignment)
+	{
+		out.println ( alignment.getSummary() );
+		out.println ( new Pair().format(alignment) );
+
+		out.println ( ">"+alignment.getName1() );
+		out.println ( alignment.getSequence1() );
+		out.println ( ">"+alignment.getName2() );
+		out.println ( alignment.getSequence2() );
+	}
+
+	/**
+	 * Recomputes a hit only in a band of diagonals around its previous alignment, see
+	 * {@link SmithWatermanGotoh#align(Sequence, Sequence, ArrayList, Matrix, float, float, float, float, long, MemoryBudget, File, int, int)}.
+	 * The X-drop is not used in the band, see -rb.
+	 * 
+	 * @param previous the previous result of the pair, with the coordinates of its alignment
+	 * @param margin the number of diagonals the band reaches beyond the previous alignment on each side
+	 */
+	public AlignmentResult run(AlignmentResult previous, int margin) throws Exception
+	{
+		// results with an error message have no coordinates
+		if (previous.getMessage() != null) return run();
+		
+		try
+		{
+			// the diagonals of the start and the end of the previous alignment
+			int d1 = previous.getStart2() - previous.getStart1();
+			int d2 = previous.getEnd2() - previous.getEnd1();
+			
+			Alignment alignment = SmithWatermanGotoh.align(seq1, seq2, matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, traceback_memory, budget, traceback_directory,
+					Math.min(d1, d2) - margin, Math.max(d1, d2) + margin);
+
+			return new AlignmentResult(alignment);
 		}
 		catch (Exception e)
 		{
@@ -132,6 +246,37 @@ public class Run {
 	private static final BigInteger big0 = BigInteger.valueOf(0);
 	private static final BigInteger big1 = BigInteger.valueOf(1);
 	
+	/**
+	 * Number of targets scored at once in a top-k search, after which the cutoff is raised
+	 */
+	private static final int TOP_K_CHUNK = 64;
+	
+	/**
+	 * Number of targets of a protein searched as one block on one thread
+	 */
+	private static final int TARGET_BLOCK = 64;
+	
+	/**
+	 * Number of batches of pairs per thread with -t: the more batches, the closer the threads finish
+	 */
+	private static final int BATCHES_PER_THREAD = 16;
+	
+	/**
+	 * Number of batches per thread with -t that are queued, searched or waiting to be printed at once
+	 */
+	private static final int TASKS_PER_THREAD = 4;
+	
+	/**
+	 * Estimated cost of aligning a pair with its traceback, relative to scoring it. This varies with the extent of
+	 * the alignment, which is not known before.
+	 */
+	private static final int ALIGN_COST = 10;
+	
+	/**
+	 * Number of bits of a word of three residues, five per residue
+	 */
+	private static final int WORD_BITS = 15;
+	
 	/**
 	 * 
 	 */
@@ -157,10 +302,17 @@ public class Run {
 		options.addOption("v", true, "verbosity: 0 (default): print only warnings;\n1: print info messages");
 		options.addOption("a", false, "print alignment");
 		options.addOption("b", true, "bitscore cutoff");
+		options.addOption("n", true, "with -a, print up to n alignments of each hit that have no pair of residues in common, the best first (default: 1); -X does not apply to them");
+		options.addOption("k", true, "only report the best k hits of each protein of p1: likely hits are scored first, and targets that cannot beat the k-th best score so far are skipped");
 		options.addOption("r", true, "read previous (Smith-Waterman) results from this file (or stdin if the parameter is '--')");
 		options.addOption("rn", true, "the number of top hits that should be recomputed (in conjunction with -r)");
 		options.addOption("rp", true, "1 or 2: recompute first or second protein row, not complete matrixl;\n-1: compute scores for missing proteins, e.g. due to out-of-memory errors");
+		options.addOption("rb", true, "recompute hits (with -r) only in a band of diagonals around the previous alignment, reaching this many diagonals beyond it on each side; the band is widened if the new alignment touches its edge, and its traceback counts against -M and -Mt; cannot be combined with -X");
 		options.addOption("rx", false, "print warning for missing sequences (if not set: abort with error)(");
+		options.addOption("M", true, "memory in MB for the traceback of one alignment, bigger alignments are traced back in linear space (default: 1/4 of the maximum heap)");
+		options.addOption("X", true, "X-drop: skip the cells of the traceback matrix that score more than this below the best score so far; hits where this may have changed the alignment are marked CC-xdrop");
+		options.addOption("Mt", true, "memory in MB for the tracebacks of all alignments run at once with -t: an alignment waits until its traceback fits, and one bigger than all of it is traced back in linear space (default: 1/2 of the maximum heap); besides it, each thread keeps up to 32 MB of working arrays between batches, and the hits of up to " + TASKS_PER_THREAD + " batches per thread are held until they are printed");
+		options.addOption("Md", true, "directory for memory-mapped traceback matrices of alignments that are too big for -M, instead of tracing back in linear space");
 		
 		// debugging / negative control options
 		options.addOption("D", false, "run debugging examples");
@@ -170,6 +322,8 @@ public class Run {
 		options.addOption("R", false, "round matrix after scaling");
 		options.addOption("P", false, "plain Smith-Waterman: do not use coiled-coil correction");
 		options.addOption("N", false, "negative control: invert order of coiled-coil matrices");
+		options.addOption("t", true, "number of threads (default: 1): the pairs are packed into batches of about equal estimated cost, the most expensive of the next few searched first, and the hits are printed in the same order as with one thread; not with -r");
+		options.addOption("S", true, "score several schemes in one pass, comma-separated: P (plain Smith-Waterman), CC, N (zero matrix), B (BLOSUM62 at coiled-coil positions); each hit is printed once per scheme with the method SW, CC, CC-zero or CC-blosum");
 		
 		// db options
 		options.addOption("p1", true, "protein sequences 1");
@@ -292,6 +446,32 @@ public class Run {
         	
         	float bitscore_cutoff = Float.valueOf(cmd.getOptionValue("b", "10"));
         	
+        	int top_k = 0;
+        	if (cmd.hasOption("k")) top_k = Integer.valueOf(cmd.getOptionValue("k"));
+        	
+        	int threads = 1;
+        	if (cmd.hasOption("t")) threads = Integer.valueOf(cmd.getOptionValue("t"));
+        	if (threads < 1) throw new Exception("invalid number of threads: " + threads);
+        	if (threads > 1 && cmd.hasOption("r")) throw new Exception("option -t cannot be combined with -r");
+        	
+        	long traceback_memory = SmithWatermanGotoh.DEFAULT_TRACEBACK_MEMORY;
+        	if (cmd.hasOption("M")) traceback_memory = Long.valueOf(cmd.getOptionValue("M")) * 1024 * 1024;
+        	
+        	File traceback_directory = null;
+        	if (cmd.hasOption("Md")) traceback_directory = new File(cmd.getOptionValue("Md"));
+        	
+        	long total_memory = Runtime.getRuntime().maxMemory() / 2;
+        	if (cmd.hasOption("Mt")) total_memory = Long.valueOf(cmd.getOptionValue("Mt")) * 1024 * 1024;
+        	if (total_memory <= 0) throw new Exception("invalid memory for all tracebacks: " + cmd.getOptionValue("Mt"));
+        	MemoryBudget budget = new MemoryBudget(total_memory);
+        	
+        	float xdrop = Float.POSITIVE_INFINITY;
+        	if (cmd.hasOption("X")) xdrop = Float.valueOf(cmd.getOptionValue("X"));
+        	
+        	int alignments = 1;
+        	if (cmd.hasOption("n")) alignments = Integer.valueOf(cmd.getOptionValue("n"));
+        	if (alignments < 1) throw new Exception("invalid number of alignments: " + alignments);
+        	
         	if (cmd.hasOption("A")) adjusted_matrix = 1;
         	
         	if (cmd.hasOption("F"))
@@ -350,50 +530,31 @@ public class Run {
     		// load coiled coil matrices unless we want to use plain S-W for control purposes
         	if (coiled_coil_sw)
         	{
-        		matrices = new ArrayList<Matrix>();
+        		matrices = loadMatrices(zero_matrix, blosum_matrix, adjusted_matrix, exact_matrix, round_matrix, blosum_fn);
+        	}
         	
-	        	for (char c : "abcdefg".toCharArray())
-	        	{
-	        		Matrix matrix;
-	        		if (zero_matrix)
-	        		{
-	        			// use empty matrix
-	        			matrix = new Matrix();
-	        		}
-	        		else if (blosum_matrix || adjusted_matrix > 0)
-	        		{
-	        			// load BLOSUM matrix, optionally use exact (instead of rounded) version
-	        			matrix = MatrixLoader.load(blosum_fn);
-	        			if (adjusted_matrix > 0)
-	        			{
-	        				float blosum_score = 0.6979f;
-	        				float ad_score = (0.2466f + 0.2373f) / 2;
-	        				float eg_score = (0.1848f + 0.1891f) / 2;
-	        				float bcf_score = (0.0736f + 0.0926f + 0.0530f) / 3;
-	        				
-	        				float scale = 1.0f / ((adjusted_matrix == 1) ? ad_score : blosum_score); 
-	        				if (c == 'a' || c == 'd') scale *= ad_score; 
-	        				else if (c == 'e' || c == 'g') scale *= eg_score;
-	        				else scale *= bcf_score;
-	        				
-	        				matrix.scaleScores(scale);
-	        			}
-	                	if (exact_matrix) matrix.scaleScores(2);
-	        		} 
-	        		else if (exact_matrix)
-	        		{
-	        			matrix = MatrixLoader.load(c + "_blosum.sij");
-	        			matrix.scaleScores(2);
-	        		}
-	        		else
-	        		{
-	        			matrix = MatrixLoader.load(c + "_blosum.iij");
-	        		}
-	        		
-	        		if (round_matrix) matrix.roundScores();
-	        		
-	        		matrices.add(matrix);
-	        	}
+        	// several schemes are scored in one pass, each hit is printed with the method of its scheme
+        	ArrayList<ArrayList<Matrix>> schemes = null;
+        	String[] methods = null;
+        	if (cmd.hasOption("S"))
+        	{
+        		if (cmd.hasOption("r") || top_k > 0 || print_alignment) throw new Exception("option -S cannot be combined with -r, -k or -a");
+        		
+        		String[] names = cmd.getOptionValue("S").split(",");
+        		schemes = new ArrayList<ArrayList<Matrix>>(names.length);
+        		methods = new String[names.length];
+        		for (int i = 0; i < names.length; i++)
+        		{
+        			if (names[i].equals("P")) { schemes.add(null); methods[i] = "SW"; }
+        			else if (names[i].equals("CC")) { schemes.add(loadMatrices(false, false, adjusted_matrix, exact_matrix, round_matrix, blosum_fn)); methods[i] = "CC"; }
+        			else if (names[i].equals("N")) { schemes.add(loadMatrices(true, false, 0, exact_matrix, round_matrix, blosum_fn)); methods[i] = "CC-zero"; }
+        			else if (names[i].equals("B")) { schemes.add(loadMatrices(false, true, 0, exact_matrix, round_matrix, blosum_fn)); methods[i] = "CC-blosum"; }
+        			else
+        			{
+        				throw new Exception("unknown scoring scheme: "+names[i]);
+        			}
+        		}
+        		System.out.println("# scoring schemes: " + cmd.getOptionValue("S"));
         	}
         	
         	// set up estimates for remaining time
@@ -401,12 +562,12 @@ public class Run {
 
         	for (Sequence s : seqs1.values())
         	{
-        		sum1 += s.residues.length;
+        		sum1 += s.length();
         	}
 
         	for (Sequence s : seqs2.values())
         	{
-        		sum2 += s.residues.length;
+        		sum2 += s.length();
         	}
 
         	// if this option is set, an existing set of scores is re-computed to avoid running
@@ -421,6 +582,10 @@ public class Run {
             	int recompute_pass = 0;
             	if (cmd.hasOption("rp")) recompute_pass = Integer.valueOf(cmd.getOptionValue("rp"));
 
+            	int band_margin = -1;
+            	if (cmd.hasOption("rb")) band_margin = Integer.valueOf(cmd.getOptionValue("rb"));
+            	if (band_margin >= 0 && cmd.hasOption("X")) throw new Exception("option -X cannot be combined with -rb");
+
             	boolean skip_missing = cmd.hasOption("rx");
             	
             	Map<String,ResultList> results1;
@@ -488,7 +653,7 @@ public class Run {
             				}
             				else
             				{
-                    			DoRun task = new DoRun(seqs1.get(ar.getName1()), seqs2.get(ar.getName2()), paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment);
+                    			DoRun task = new DoRun(seqs1.get(ar.getName1()), seqs2.get(ar.getName2()), paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment, bitscore_cutoff, traceback_memory, traceback_directory, xdrop);
                     			AlignmentResult result = task.run();
                     	        if (result.getBitscore() >= bitscore_cutoff) System.out.println(result.toString());
             				}
@@ -516,7 +681,7 @@ public class Run {
         					if (rl != null)
         					{
 	        					results1.put("", rl);
-	            				recompute(results1, null, recompute_pass, bitscore_cutoff, to_check, seqs1, seqs2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, 0, skip_missing);
+	            				recompute(results1, null, recompute_pass, bitscore_cutoff, to_check, seqs1, seqs2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, 0, skip_missing, band_margin, traceback_memory, budget, traceback_directory, xdrop);
 	            				results1.clear();
 		            			total_done = total_done.add(big1);
         					}
@@ -533,36 +698,81 @@ public class Run {
     			if (recompute_pass == 0)
     			{
     				System.err.println("starting first pass through alignments, no output expected yet");
-    				recompute(results1, results2, recompute_pass, bitscore_cutoff, to_check, seqs1, seqs2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, sum1, skip_missing);
+    				recompute(results1, results2, recompute_pass, bitscore_cutoff, to_check, seqs1, seqs2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, sum1, skip_missing, band_margin, traceback_memory, budget, traceback_directory, xdrop);
     				System.err.println("starting second pass through alignments, printing alignments");
-    				recompute(results2, null, recompute_pass, bitscore_cutoff, to_check, seqs1, seqs2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, sum2, skip_missing);
+    				recompute(results2, null, recompute_pass, bitscore_cutoff, to_check, seqs1, seqs2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, sum2, skip_missing, band_margin, traceback_memory, budget, traceback_directory, xdrop);
     			}
     		}
     		else
     		{
-    			BigInteger total_done = BigInteger.valueOf(0);
+        		// cells of the pairs searched or skipped, counted by all threads
+        		AtomicLong total_done = new AtomicLong();
         		long start = System.currentTimeMillis();
         		long last_notification = start - 9000; // print first notification after 1 second 
 
         		BigInteger total_todo = BigInteger.valueOf(sum1).multiply(BigInteger.valueOf(sum2)); 
 
-            	// perform S-W alignments
-            	for (Sequence seq1 : seqs1.values())
-            	{
-            		for (Sequence seq2 : seqs2.values())
-                	{
-            			total_done = total_done.add(BigInteger.valueOf(seq1.residues.length*seq2.residues.length));
+        		// pairs that cannot reach the cutoff are skipped, unless all alignments are printed
+        		ArrayList<Matrix> bound_matrices = matrices;
+        		if (schemes != null)
+        		{
+        			// a bound over the matrices of all schemes, and the scoring matrix for plain schemes, holds for each scheme
+        			bound_matrices = null;
+        			for (ArrayList<Matrix> scheme : schemes)
+        			{
+        				if (scheme == null) continue;
+        				if (bound_matrices == null) bound_matrices = new ArrayList<Matrix>();
+        				bound_matrices.addAll(scheme);
+        			}
+        			if (bound_matrices != null && schemes.contains(null)) bound_matrices.add(blosum);
+        		}
+        		ScoreBound bound = new ScoreBound(bound_matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch);
+        		Map<String,ScoreBound.SequenceBound> bounds2 = new HashMap<String,ScoreBound.SequenceBound>(seqs2.size());
+        		for (Sequence seq2 : seqs2.values())
+        		{
+        			bounds2.put(seq2.name, bound.getBound(seq2));
+        		}
+        		AtomicLong pruned = new AtomicLong();
+        		
+        		if (threads > 1)
+        		{
+        			searchScheduled(threads, seqs1.values(), seqs2.values().toArray(new Sequence[seqs2.size()]), symm, total_done, pruned, total_todo, last_notification, start, top_k, bound, bounds2, schemes, methods, bitscore_cutoff, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment, traceback_memory, budget, traceback_directory, xdrop, alignments);
+        		}
+        		else
+        		{
+        			// perform S-W alignments
+        			for (Sequence seq1 : seqs1.values())
+        			{
+        				ScoreBound.SequenceBound bound1 = bound.getBound(seq1);
 
-            			// in the symmetrical case, only do upper triangle
-            			if (symm && (seq1.name.compareTo(seq2.name) < 0)) continue;
-            			
-            			DoRun task = new DoRun(seq1, seq2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment);
-            			AlignmentResult result = task.run();
-            	        if (result.getBitscore() >= bitscore_cutoff || result.getMessage() != null) System.out.println(result.toString());
-    	    	        
-    	    	        last_notification = printProgress(total_todo, total_done, last_notification, start);
-                	}
-            	}    			
+        				ArrayList<Sequence> targets = new ArrayList<Sequence>(seqs2.size());
+        				for (Sequence seq2 : seqs2.values())
+        				{
+        					// in the symmetrical case, only do upper triangle
+        					if (!symm || (seq1.name.compareTo(seq2.name) >= 0))
+        					{
+        						if (print_alignment || bound.canReach(bound1, bounds2.get(seq2.name), bitscore_cutoff))
+        						{
+        							targets.add(seq2);
+        							continue;
+        						}
+        						pruned.incrementAndGet();
+        					}
+        					total_done.addAndGet((long) seq1.length() * seq2.length());
+        				}
+
+        				// with -k, the cutoff rises with the hits found among all targets of the protein
+        				final int size = top_k > 0 ? Math.max(1, targets.size()) : TARGET_BLOCK;
+        				for (int from = 0; from < targets.size(); from += size)
+        				{
+        					List<Sequence> block = targets.subList(from, Math.min(targets.size(), from + size));
+        					searchBlock(System.out, total_done, pruned, seq1, bound1, block, top_k, bound, bounds2, schemes, methods, bitscore_cutoff, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment, traceback_memory, budget, traceback_directory, xdrop, alignments);
+        					last_notification = printProgress(total_todo, BigInteger.valueOf(total_done.get()), last_notification, start);
+        				}
+        			}
+        		}
+            	
+            	System.err.println("# pairs skipped below the bitscore cutoff by the score bound: " + pruned.get());
     		}
         	
         	System.out.println("#DONE");
@@ -574,6 +784,603 @@ public class Run {
         }
     }
 	
+	/**
+	 * Loads the coiled-coil matrices of the seven registers.
+	 * 
+	 * @param zero_matrix use empty matrices
+	 * @param blosum_matrix use the BLOSUM matrix
+	 * @param adjusted_matrix 1 or 2 to use the BLOSUM matrix adjusted to each register, otherwise 0
+	 * @param exact_matrix load the exact (not rounded) matrices
+	 * @param round_matrix round the matrices after scaling
+	 * @param blosum_fn name of the BLOSUM matrix
+	 */
+	private static ArrayList<Matrix> loadMatrices(boolean zero_matrix, boolean blosum_matrix, int adjusted_matrix,
+			boolean exact_matrix, boolean round_matrix, String blosum_fn) throws Exception
+	{
+		ArrayList<Matrix> matrices = new ArrayList<Matrix>();
+		
+		for (char c : "abcdefg".toCharArray())
+		{
+			Matrix matrix;
+			if (zero_matrix)
+			{
+				// use empty matrix
+				matrix = new Matrix();
+			}
+			else if (blosum_matrix || adjusted_matrix > 0)
+			{
+				// load BLOSUM matrix, optionally use exact (instead of rounded) version
+				matrix = MatrixLoader.load(blosum_fn);
+				if (adjusted_matrix > 0)
+				{
+					float blosum_score = 0.6979f;
+					float ad_score = (0.2466f + 0.2373f) / 2;
+					float eg_score = (0.1848f + 0.1891f) / 2;
+					float bcf_score = (0.0736f + 0.0926f + 0.0530f) / 3;
+		
+					float scale = 1.0f / ((adjusted_matrix == 1) ? ad_score : blosum_score); 
+					if (c == 'a' || c == 'd') scale *= ad_score; 
+					else if (c == 'e' || c == 'g') scale *= eg_score;
+					else scale *= bcf_score;
+		
+					matrix.scaleScores(scale);
+				}
+				if (exact_matrix) matrix.scaleScores(2);
+			} 
+			else if (exact_matrix)
+			{
+				matrix = MatrixLoader.load(c + "_blosum.sij");
+				matrix.scaleScores(2);
+			}
+			else
+			{
+				matrix = MatrixLoader.load(c + "_blosum.iij");
+			}
+		
+			if (round_matrix) matrix.roundScores();
+		
+			matrices.add(matrix);
+		}
+		
+		return matrices;
+	}
+	
+	/**
+	 * Searches a protein against a block of its targets, and prints the hits. With -k, the block must hold all
+	 * targets of the protein, as the cutoff rises with the hits found.
+	 * 
+	 * @param out where the hits go
+	 * @param done on return, increased by the cells of the pairs searched
+	 * @param pruned on return, increased by the number of targets skipped by the score bound
+	 */
+	private static void searchBlock(PrintStream out, AtomicLong done, AtomicLong pruned, Sequence seq1, ScoreBound.SequenceBound bound1,
+			List<Sequence> targets, int top_k, ScoreBound bound, Map<String,ScoreBound.SequenceBound> bounds2,
+			ArrayList<ArrayList<Matrix>> schemes, String[] methods, float bitscore_cutoff, float paramGapOpen, float paramGapExt,
+			float paramCoilMatch, float paramCoilMismatch, ArrayList<Matrix> matrices, Matrix blosum, boolean print_alignment,
+			long traceback_memory, MemoryBudget budget, File traceback_directory, float xdrop, int alignments) throws Exception
+	{
+		if (schemes != null)
+		{
+			searchSchemes(out, seq1, targets, schemes, methods, bitscore_cutoff, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, blosum, traceback_memory, budget, traceback_directory, xdrop);
+			for (Sequence seq2 : targets) done.addAndGet((long) seq1.length() * seq2.length());
+			return;
+		}
+		
+		if (top_k > 0)
+		{
+			pruned.addAndGet(searchTopK(out, seq1, bound1, targets, top_k, bound, bounds2, bitscore_cutoff, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment, traceback_memory, budget, traceback_directory, xdrop, alignments));
+			for (Sequence seq2 : targets) done.addAndGet((long) seq1.length() * seq2.length());
+			return;
+		}
+		
+		// score seq1 against all targets at once, and only align the hits
+		Cell[] cells = null;
+		if (!print_alignment)
+		{
+			try
+			{
+				cells = SmithWatermanGotoh.score(seq1, targets.toArray(new Sequence[targets.size()]), matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch);
+			}
+			catch (Exception e)
+			{
+				System.err.println("Exception when scoring "+seq1.name);
+				throw e;
+			}
+		}
+		
+		for (int i = 0; i < targets.size(); i++)
+		{
+			Sequence seq2 = targets.get(i);
+			
+			DoRun task = new DoRun(seq1, seq2, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment, bitscore_cutoff, traceback_memory, traceback_directory, xdrop);
+			task.setOutput(out);
+			task.setBudget(budget);
+			task.setAlignments(alignments);
+			AlignmentResult result = task.run(cells == null ? null : cells[i]);
+			if (result.getBitscore() >= bitscore_cutoff || result.getMessage() != null) out.println(result.toString());
+			
+			done.addAndGet((long) seq1.length() * seq2.length());
+		}
+	}
+	
+	/**
+	 * A batch of pairs searched on one thread with -t: the targets of a protein from one index to another.
+	 */
+	private static final class Batch
+	{
+		final Sequence seq1;
+		final ScoreBound.SequenceBound bound1;
+		final int from, to;
+		
+		/**
+		 * Estimated cost of the pairs searched, in cells
+		 */
+		final double cost;
+		
+		/**
+		 * The hits, once searched
+		 */
+		Future<String> result;
+		
+		/**
+		 * CPU time of the search, in nanoseconds, once searched
+		 */
+		long time;
+		
+		Batch(Sequence seq1, ScoreBound.SequenceBound bound1, int from, int to, double cost)
+		{
+			this.seq1 = seq1;
+			this.bound1 = bound1;
+			this.from = from;
+			this.to = to;
+			this.cost = cost;
+		}
+	}
+	
+	/**
+	 * The search of a batch with -t, queued before those of cheaper batches, and of batches of the same cost that
+	 * come later
+	 */
+	private static class BatchTask extends FutureTask<String> implements Comparable<BatchTask>
+	{
+		private final int index;
+		private final double cost;
+		
+		BatchTask(int index, double cost, Callable<String> search)
+		{
+			super(search);
+			this.index = index;
+			this.cost = cost;
+		}
+		
+		public int compareTo(BatchTask other)
+		{
+			int c = Double.compare(other.cost, cost);
+			return c != 0 ? c : Integer.compare(index, other.index);
+		}
+	}
+	
+	/**
+	 * Searches the proteins against their targets on a pool of threads, see {@link #searchBlock}. The targets of
+	 * each protein are packed into batches of about equal estimated cost, see
+	 * {@link SmithWatermanGotoh#getScoreCost(Sequence, Sequence[], int)}, which fill whole batches of the scan, so
+	 * cheap pairs go together and an expensive pair only shares the lanes of its scan. With -k, all targets of a
+	 * protein are one batch. The hits are printed in the order of the proteins and their targets, as with one
+	 * thread, and only {@link #TASKS_PER_THREAD} batches per thread are queued, searched or waiting to be printed at
+	 * once, so the hits are printed as they are found. Of the batches queued, the threads take the most expensive
+	 * first, so a long pair does not start last while the other threads are idle. The predicted and actual costs
+	 * of the batches are printed at the end.
+	 * 
+	 * @param done on return, increased by the cells of all pairs
+	 * @param pruned on return, increased by the number of targets skipped by the score bound
+	 */
+	private static void searchScheduled(int threads, Collection<Sequence> seqs1, final Sequence[] seqs2, final boolean symm,
+			final AtomicLong done, final AtomicLong pruned, BigInteger total_todo, long last_notification, long start, final int top_k,
+			final ScoreBound bound, final Map<String,ScoreBound.SequenceBound> bounds2, final ArrayList<ArrayList<Matrix>> schemes,
+			final String[] methods, final float bitscore_cutoff, final float paramGapOpen, final float paramGapExt, final float paramCoilMatch,
+			final float paramCoilMismatch, final ArrayList<Matrix> matrices, final Matrix blosum, final boolean print_alignment,
+			final long traceback_memory, final MemoryBudget budget, final File traceback_directory, final float xdrop, final int alignments) throws Exception
+	{
+		// the cost of all pairs searched, to size the batches
+		ArrayList<ScoreBound.SequenceBound> bounds1 = new ArrayList<ScoreBound.SequenceBound>(seqs1.size());
+		double total_cost = 0;
+		for (Sequence seq1 : seqs1)
+		{
+			ScoreBound.SequenceBound bound1 = bound.getBound(seq1);
+			bounds1.add(bound1);
+			ArrayList<Sequence> targets = new ArrayList<Sequence>(seqs2.length);
+			for (Sequence seq2 : seqs2)
+			{
+				if (isSearched(seq1, bound1, seq2, symm, print_alignment, bound, bounds2, bitscore_cutoff))
+				{
+					targets.add(seq2);
+					continue;
+				}
+				if (!symm || seq1.name.compareTo(seq2.name) >= 0) pruned.incrementAndGet();
+				done.addAndGet((long) seq1.length() * seq2.length());
+			}
+			total_cost += getCost(seq1, targets, schemes, print_alignment);
+		}
+		
+		// the targets of a batch fill the batches of the scan, where a pair costs about its cells under each scheme
+		// and as much again for the profiles, unless they are aligned one by one
+		final boolean aligned = print_alignment && schemes == null;
+		final int count = schemes == null ? 1 : schemes.size();
+		final int width = aligned ? 1 : SmithWatermanGotoh.getBatchWidth(count);
+		final double share = aligned ? ALIGN_COST : 2 * count;
+		
+		final double grain = total_cost / threads / BATCHES_PER_THREAD;
+		ArrayList<Batch> batches = new ArrayList<Batch>();
+		int p = 0;
+		for (Sequence seq1 : seqs1)
+		{
+			ScoreBound.SequenceBound bound1 = bounds1.get(p++);
+			ArrayList<Sequence> targets = new ArrayList<Sequence>();
+			int from = 0;
+			double cost = 0;
+			for (int j = 0; j < seqs2.length; j++)
+			{
+				if (!isSearched(seq1, bound1, seqs2[j], symm, print_alignment, bound, bounds2, bitscore_cutoff)) continue;
+				
+				// with -k, the cutoff rises with the hits found among all targets of the protein
+				double pair = share * SmithWatermanGotoh.getScoreCost(seq1, seqs2[j]);
+				if (top_k == 0 && targets.size() % width == 0 && cost > 0 && cost + pair > grain)
+				{
+					batches.add(new Batch(seq1, bound1, from, j, getCost(seq1, targets, schemes, print_alignment)));
+					targets.clear();
+					from = j;
+					cost = 0;
+				}
+				targets.add(seqs2[j]);
+				cost += pair;
+			}
+			if (!targets.isEmpty()) batches.add(new Batch(seq1, bound1, from, seqs2.length, getCost(seq1, targets, schemes, print_alignment)));
+		}
+		
+		// the threads take the most expensive of the batches queued
+		final int window = TASKS_PER_THREAD * threads;
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		long started = System.nanoTime();
+		try
+		{
+			int submitted = 0;
+			for (int i = 0; i < batches.size(); i++)
+			{
+				// the batches a window ahead of the one printed next
+				for (; submitted < batches.size() && submitted < i + window; submitted++)
+				{
+					final Batch batch = batches.get(submitted);
+					BatchTask task = new BatchTask(submitted, batch.cost, new Callable<String>() {
+						public String call() throws Exception {
+							// the threads of the pool are all the threads the user asked for
+							SmithWatermanGotoh.setParallel(false);
+							long time = getCpuTime();
+							ArrayList<Sequence> targets = new ArrayList<Sequence>(batch.to - batch.from);
+							for (int j = batch.from; j < batch.to; j++)
+							{
+								if (isSearched(batch.seq1, batch.bound1, seqs2[j], symm, print_alignment, bound, bounds2, bitscore_cutoff)) targets.add(seqs2[j]);
+							}
+						
+							// the buffer is decoded before it is printed, so System.out encodes it as if it had been printed directly
+							ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+							PrintStream out = new PrintStream(buffer, false, "UTF-8");
+							searchBlock(out, done, pruned, batch.seq1, batch.bound1, targets, top_k, bound, bounds2, schemes, methods, bitscore_cutoff, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment, traceback_memory, budget, traceback_directory, xdrop, alignments);
+							out.flush();
+							SmithWatermanGotoh.trimWorkspace();
+							batch.time = getCpuTime() - time;
+							return buffer.toString("UTF-8");
+						}
+					});
+					batch.result = task;
+					pool.execute(task);
+				}
+				
+				last_notification = printBlock(batches.get(i).result, done, total_todo, last_notification, start);
+				batches.get(i).result = null;
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		
+		if (!batches.isEmpty()) printSchedule(batches, threads, window, System.nanoTime() - started);
+		System.err.println(String.format("# peak traceback memory: %.1f MB of %.1f MB", budget.getPeak() / 1048576.0,
+				budget.getTotal() / 1048576.0));
+	}
+	
+	/**
+	 * Returns whether a pair is searched: in the symmetrical case only the upper triangle, and unless all
+	 * alignments are printed, only the pairs whose score bound reaches the cutoff.
+	 */
+	private static boolean isSearched(Sequence seq1, ScoreBound.SequenceBound bound1, Sequence seq2, boolean symm, boolean print_alignment,
+			ScoreBound bound, Map<String,ScoreBound.SequenceBound> bounds2, float bitscore_cutoff)
+	{
+		if (symm && seq1.name.compareTo(seq2.name) < 0) return false;
+		return print_alignment || bound.canReach(bound1, bounds2.get(seq2.name), bitscore_cutoff);
+	}
+	
+	/**
+	 * Returns the estimated cost of searching a protein against some of its targets with {@link #searchBlock}, in
+	 * the cells of {@link SmithWatermanGotoh#getScoreCost(Sequence, Sequence)}, leaving out the alignments of the
+	 * hits.
+	 */
+	private static double getCost(Sequence seq1, List<Sequence> targets, ArrayList<ArrayList<Matrix>> schemes, boolean print_alignment)
+	{
+		if (schemes == null && print_alignment)
+		{
+			// all pairs are aligned, without scoring them first
+			double cost = 0;
+			for (Sequence seq2 : targets) cost += ALIGN_COST * SmithWatermanGotoh.getScoreCost(seq1, seq2);
+			return cost;
+		}
+		return SmithWatermanGotoh.getScoreCost(seq1, targets.toArray(new Sequence[targets.size()]), schemes == null ? 1 : schemes.size());
+	}
+	
+	/**
+	 * Returns the CPU time of the current thread in nanoseconds, or the wall time if that is not supported, so the
+	 * cost of a batch does not depend on the other threads sharing its CPU.
+	 */
+	private static long getCpuTime()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+	
+	/**
+	 * Prints the predicted against the actual cost of the batches of a search: their estimated cost in cells
+	 * against the CPU time they took, and the time the search would have taken if each batch had taken its share of
+	 * that time by its estimated cost, against the time it took.
+	 * 
+	 * @param batches the batches, in the order they were printed
+	 * @param window the number of batches queued, searched or waiting to be printed at once
+	 * @param elapsed time the search took, in nanoseconds
+	 */
+	private static void printSchedule(final ArrayList<Batch> batches, int threads, int window, long elapsed)
+	{
+		double cost = 0;
+		long time = 0;
+		for (Batch batch : batches)
+		{
+			cost += batch.cost;
+			time += batch.time;
+		}
+		final double rate = time / cost;
+		
+		// the threads take the most expensive batch queued, and a batch is queued once the one a window before it is
+		// printed
+		PriorityQueue<Integer> queued = new PriorityQueue<Integer>(window, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(batches.get(b).cost, batches.get(a).cost);
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+		PriorityQueue<double[]> running = new PriorityQueue<double[]>(threads, new Comparator<double[]>() {
+			public int compare(double[] a, double[] b) {
+				return Double.compare(a[0], b[0]);
+			}
+		});
+		boolean[] finished = new boolean[batches.size()];
+		int submitted = 0, printed = 0, idle = threads;
+		double makespan = 0, error = 0;
+		while (printed < batches.size())
+		{
+			for (; submitted < batches.size() && submitted < printed + window; submitted++) queued.add(submitted);
+			for (; idle > 0 && !queued.isEmpty(); idle--)
+			{
+				int b = queued.poll();
+				running.add(new double[] { makespan + batches.get(b).cost, b });
+			}
+			double[] next = running.poll();
+			makespan = next[0];
+			finished[(int) next[1]] = true;
+			idle++;
+			while (printed < batches.size() && finished[printed]) printed++;
+		}
+		for (Batch batch : batches)
+		{
+			error += Math.abs(batch.time - rate * batch.cost);
+		}
+		
+		System.err.println(String.format("# schedule: %d batches on %d threads, the most expensive of the next %d first", batches.size(), threads, window));
+		System.err.println(String.format("# predicted cost: %.3g cells, actual: %.1f s of CPU, %.2f ns per cell", cost, time / 1e9, rate));
+		System.err.println(String.format("# time: predicted %.1f s, actual %.1f s, work per thread %.1f s", makespan * rate / 1e9, elapsed / 1e9, time / 1e9 / threads));
+		System.err.println(String.format("# error of the predicted cost of the batches: %.0f%% of the actual cost", 100 * error / time));
+	}
+	
+	/**
+	 * Waits for the search of a block of targets and prints its hits, printing the progress of all threads while
+	 * waiting.
+	 * 
+	 * @return the time of the last notification
+	 */
+	private static long printBlock(Future<String> block, AtomicLong done, BigInteger total_todo, long last_notification, long start) throws Exception
+	{
+		while (true)
+		{
+			try
+			{
+				System.out.print(block.get(1, TimeUnit.SECONDS));
+				return printProgress(total_todo, BigInteger.valueOf(done.get()), last_notification, start);
+			}
+			catch (TimeoutException e)
+			{
+				last_notification = printProgress(total_todo, BigInteger.valueOf(done.get()), last_notification, start);
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+				if (e.getCause() instanceof Error) throw (Error) e.getCause();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Scores a protein against its targets and prints only its best top_k hits, by score and then in the order of
+	 * the targets. The targets that share the most words of three residues with the protein are scored first, a
+	 * chunk at a time. Once top_k hits are known, the cutoff rises to the lowest of their scores, and targets whose
+	 * score bound is below it are skipped: they cannot be among the best. Only the final hits are aligned.
+	 * 
+	 * @return the number of targets skipped by the score bound
+	 */
+	private static long searchTopK(PrintStream out, Sequence seq1, ScoreBound.SequenceBound bound1, List<Sequence> targets, int top_k, ScoreBound bound,
+			Map<String,ScoreBound.SequenceBound> bounds2, float bitscore_cutoff, float paramGapOpen, float paramGapExt, float paramCoilMatch,
+			float paramCoilMismatch, ArrayList<Matrix> matrices, Matrix blosum, boolean print_alignment, long traceback_memory,
+			MemoryBudget budget, File traceback_directory, float xdrop, int alignments) throws Exception
+	{
+		final int n = targets.size();
+		
+		// likely hits first: targets sharing more words with the protein
+		long[] words = getWords(seq1);
+		final int[] shared = new int[n];
+		Integer[] order = new Integer[n];
+		for (int k = 0; k < n; k++)
+		{
+			shared[k] = countWords(targets.get(k), words);
+			order[k] = k;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return shared[a] != shared[b] ? shared[b] - shared[a] : a - b;
+			}
+		});
+		
+		// the best hits so far, the worst one first
+		final Cell[] cells = new Cell[n];
+		PriorityQueue<Integer> best = new PriorityQueue<Integer>(top_k + 1, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int result = Float.compare(cells[a].getScore(), cells[b].getScore());
+				return result != 0 ? result : b - a;
+			}
+		});
+		
+		float cutoff = bitscore_cutoff;
+		long pruned = 0;
+		
+		for (int first = 0; first < n; first += TOP_K_CHUNK)
+		{
+			ArrayList<Integer> chunk = new ArrayList<Integer>(TOP_K_CHUNK);
+			for (int r = first; r < Math.min(n, first + TOP_K_CHUNK); r++)
+			{
+				if (bound.canReach(bound1, bounds2.get(targets.get(order[r]).name), cutoff)) chunk.add(order[r]);
+				else pruned++;
+			}
+			if (chunk.isEmpty()) continue;
+			
+			Sequence[] seqs2 = new Sequence[chunk.size()];
+			for (int c = 0; c < seqs2.length; c++) seqs2[c] = targets.get(chunk.get(c));
+			
+			Cell[] scored;
+			try
+			{
+				scored = SmithWatermanGotoh.score(seq1, seqs2, matrices, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch);
+			}
+			catch (Exception e)
+			{
+				System.err.println("Exception when scoring "+seq1.name);
+				throw e;
+			}
+			
+			for (int c = 0; c < scored.length; c++)
+			{
+				if (scored[c].getScore() < bitscore_cutoff) continue;
+				cells[chunk.get(c)] = scored[c];
+				best.add(chunk.get(c));
+				if (best.size() > top_k) best.poll();
+			}
+			
+			if (best.size() == top_k) cutoff = Math.max(bitscore_cutoff, cells[best.peek()].getScore());
+		}
+		
+		Integer[] hits = best.toArray(new Integer[best.size()]);
+		Arrays.sort(hits, Collections.reverseOrder(best.comparator()));
+		
+		for (int k : hits)
+		{
+			DoRun task = new DoRun(seq1, targets.get(k), paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, matrices, blosum, print_alignment, bitscore_cutoff, traceback_memory, traceback_directory, xdrop);
+			task.setOutput(out);
+			task.setBudget(budget);
+			task.setAlignments(alignments);
+			out.println(task.run(cells[k]).toString());
+		}
+		
+		return pruned;
+	}
+	
+	/**
+	 * Scores a protein against its targets under several schemes in one pass, see
+	 * {@link SmithWatermanGotoh#scoreSchemes(Sequence, Sequence[], ArrayList, Matrix, float, float, float, float)},
+	 * and prints the hits of each target under each scheme, with the method of the scheme.
+	 */
+	private static void searchSchemes(PrintStream out, Sequence seq1, List<Sequence> targets, ArrayList<ArrayList<Matrix>> schemes, String[] methods,
+			float bitscore_cutoff, float paramGapOpen, float paramGapExt, float paramCoilMatch, float paramCoilMismatch, Matrix blosum,
+			long traceback_memory, MemoryBudget budget, File traceback_directory, float xdrop) throws Exception
+	{
+		Cell[][] cells;
+		try
+		{
+			cells = SmithWatermanGotoh.scoreSchemes(seq1, targets.toArray(new Sequence[targets.size()]), schemes, blosum, paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch);
+		}
+		catch (Exception e)
+		{
+			System.err.println("Exception when scoring "+seq1.name);
+			throw e;
+		}
+		
+		for (int i = 0; i < targets.size(); i++)
+		{
+			for (int scheme = 0; scheme < schemes.size(); scheme++)
+			{
+				DoRun task = new DoRun(seq1, targets.get(i), paramGapOpen, paramGapExt, paramCoilMatch, paramCoilMismatch, schemes.get(scheme), blosum, false, bitscore_cutoff, traceback_memory, traceback_directory, xdrop);
+				task.setBudget(budget);
+				AlignmentResult result = task.run(cells[scheme][i]);
+				if (result.getMessage() == null)
+				{
+					if (result.getBitscore() < bitscore_cutoff) continue;
+					result.setMethod(methods[scheme] + (result.getMethod().endsWith("-xdrop") ? "-xdrop" : ""));
+				}
+				out.println(result.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the set of words of three residues of a sequence, as a bit set.
+	 */
+	private static long[] getWords(Sequence seq)
+	{
+		long[] words = new long[1 << (WORD_BITS - 6)];
+		for (int i = 2; i < seq.length(); i++)
+		{
+			int w = getWord(seq, i);
+			words[w >>> 6] |= 1L << w;
+		}
+		return words;
+	}
+	
+	/**
+	 * Returns the number of words of three residues of a sequence that are in a set.
+	 */
+	private static int countWords(Sequence seq, long[] words)
+	{
+		int count = 0;
+		for (int i = 2; i < seq.length(); i++)
+		{
+			int w = getWord(seq, i);
+			if ((words[w >>> 6] & 1L << w) != 0) count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the word of three residues ending at residue i, five bits per letter.
+	 */
+	private static int getWord(Sequence seq, int i)
+	{
+		return (seq.aa[i-2] & 31) << 10 | (seq.aa[i-1] & 31) << 5 | (seq.aa[i] & 31);
+	}
+	
 	private static long printProgress(BigInteger total_todo, BigInteger total_done, long last_notification, long start)
 	{
 		// print notification every 10 seconds on remaining time 
@@ -615,7 +1422,7 @@ public class Run {
 	
 	private static void recompute(Map<String,ResultList> results1, Map<String,ResultList> results2, int recompute_pass, float bitscore_cutoff, int to_check, Map<String,Sequence> seqs1, Map<String,Sequence> seqs2, 
 			float paramGapOpen, float paramGapExt, float paramCoilMatch, float paramCoilMismatch, ArrayList<Matrix> matrices,
-			Matrix blosum, int total_sequence_length, boolean skip_missing) throws Exception
+			Matrix blosum, int total_sequence_length, boolean skip_missing, int band_margin, long traceback_memory, MemoryBudget budget, File traceback_directory, float xdrop) throws Exception
 	{
 		BigInteger total_done = BigInteger.valueOf(0);
 		long start = 0, last_notification = 0; 
@@ -666,20 +1473,15 @@ public class Run {
 						}
 					}
 
-					// if the scores of the input are the same for non-CC proteins, can skip re-computing them
-//					if (seq1.min_pvalue > 0.1 & seq2.min_pvalue > 0.1)
-//					{
-//						ar.setMethod("SW-no-cc");
-//						rl.add(ar);
-//					}
-//					else
-					{
-	        			DoRun task = new DoRun(seq1, seq2, paramGapOpen, paramGapExt, paramCoilMatch, 
-								paramCoilMismatch, matrices, blosum, false);
-	        			
-	        			ar = task.run();
-	        			if (ar.getBitscore() >= bitscore_cutoff) rl.add(ar);
-					}
+					// without a coil in either protein, the pair is aligned by plain Smith-Waterman and marked SW-no-cc;
+					// the score of the input is not reused, as the scoring it was computed with is not known
+	        		DoRun task = new DoRun(seq1, seq2, paramGapOpen, paramGapExt, paramCoilMatch, 
+							paramCoilMismatch, matrices, blosum, false, bitscore_cutoff, traceback_memory, traceback_directory, xdrop);
+	        		task.setBudget(budget);
+	        		
+	        		// with a margin, only the band of diagonals around the previous alignment is recomputed
+	        		ar = (band_margin < 0) ? task.run() : task.run(ar, band_margin);
+	        		if (ar.getBitscore() >= bitscore_cutoff) rl.add(ar);
 				}
 			}
 			
@@ -706,7 +1508,7 @@ public class Run {
 			
 			if (total_sequence_length > 0)
 			{
-				total_done = total_done.add(BigInteger.valueOf( (results2 == null ? seqs2 : seqs1).get(entry_name).residues.length ));
+				total_done = total_done.add(BigInteger.valueOf( (results2 == null ? seqs2 : seqs1).get(entry_name).length() ));
 		        last_notification = printProgress(total_todo, total_done, last_notification, start);
 			}
 		}
@@ -743,7 +1545,7 @@ public class Run {
 
 	    BufferedReader br = new BufferedReader(openFile(cc_path));
 	    
-	    ArrayList<Residue> residues = null;
+	    Sequence.Builder residues = null;
 	    String name = null;
 	    
 	    for (String line = br.readLine(); line != null; line = br.readLine()) {
@@ -752,14 +1554,14 @@ public class Run {
 	    	{
 	    		if (residues != null)
 	    		{
-	    			sequences.put( name, new Sequence(name, residues.toArray(new Residue[0])) );
+	    			sequences.put( name, residues.build(name) );
 	    		}
 	    		
 	    		name = Commons.extractName(line);
 	    		
 	    		if (sequence_lengths.containsKey(name))
 	    		{
-	    			residues = new ArrayList<Residue>(sequence_lengths.get(name));
+	    			residues = new Sequence.Builder(sequence_lengths.get(name));
 	    		}
 	    		else
 	    		{
@@ -784,12 +1586,12 @@ public class Run {
 	    			register = -1;
 	    		}
 	    		
-	    		BitSet possible_registers = new BitSet(7);
+	    		int possible_registers = 0;
 	    		
 	    		for (int i = 0; i < 7; i++)
-	    			if (Float.valueOf(l[3+i]) > 0.0) possible_registers.set(i); 
+	    			if (Float.valueOf(l[3+i]) > 0.0) possible_registers |= 1 << i; 
 	    		
-	    		residues.add( new Residue(residue, register, prob, possible_registers) );
+	    		residues.add(residue, register, prob, possible_registers);
 	    	}
 	    }
 	    
@@ -800,7 +1602,7 @@ public class Run {
 				throw new Exception("Coiled-coil prediction for '"+name+"' does not match size between '"+aa_path+"' and '"+cc_path+"'! ("+residues.size()+" vs. "+sequence_lengths.get(name)+")");
 			}
 			
-			sequences.put( name, new Sequence(name, residues.toArray(new Residue[0])) );
+			sequences.put( name, residues.build(name) );
 		}
 		
 		for (String seq_name : sequence_lengths.keySet())